@@ -0,0 +1,88 @@
+package dev.lukebemish.taskgraphrunner.cli;
+
+import dev.lukebemish.taskgraphrunner.runtime.util.CacheBundle;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "cache", mixinStandardHelpOptions = true, description = "Move cached task outputs between cache directories")
+public class Cache implements Callable<Integer> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Cache.class);
+
+    @Override
+    public Integer call() {
+        System.err.println("No subcommand specified.");
+        new CommandLine(this).usage(System.err);
+        return 1;
+    }
+
+    @CommandLine.Command(name = "export", mixinStandardHelpOptions = true, description = "Run a task graph, then bundle the state and outputs of every task it executed")
+    static class Export implements Runnable {
+        @CommandLine.Parameters(index = "0", description = "Configuration file.")
+        Path config;
+
+        @CommandLine.Parameters(index = "1", description = "Bundle to write.")
+        Path bundle;
+
+        @CommandLine.Option(names = "--work", arity = "*", description = "Additional work item to run.")
+        List<Path> workItems = List.of();
+
+        private final Main main;
+
+        Export(Main main) {
+            this.main = main;
+        }
+
+        @Override
+        public void run() {
+            var run = new Run(main);
+            run.config = config;
+            run.workItems = workItems;
+            Map<String, MetadataStore.TaskState> states = new LinkedHashMap<>();
+            run.execute(invocation -> states.putAll(invocation.executedTaskStates()));
+            try {
+                var objects = CacheBundle.write(main.cacheDir, states, bundle);
+                LOGGER.info("Exported {} task states and {} objects to {}", states.size(), objects, bundle);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @CommandLine.Command(name = "import", mixinStandardHelpOptions = true, description = "Unpack a bundle written by `cache export` into the cache directory")
+    static class Import implements Runnable {
+        @CommandLine.Parameters(index = "0", description = "Bundle to read.")
+        Path bundle;
+
+        @CommandLine.Option(names = "--parallelism", description = "Maximum number of objects to extract at once.")
+        int parallelism = 4;
+
+        private final Main main;
+
+        Import(Main main) {
+            this.main = main;
+        }
+
+        @Override
+        public void run() {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("Parallelism must be positive");
+            }
+            try {
+                var states = CacheBundle.read(bundle, main.cacheDir, parallelism);
+                LOGGER.info("Imported {} task states from {}", states, bundle);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -4,6 +4,8 @@
 import dev.lukebemish.taskgraphrunner.runtime.util.HashUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.JsonUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
@@ -11,18 +13,26 @@
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @CommandLine.Command(name = "clean", mixinStandardHelpOptions = true, description = "Clean up old outputs")
@@ -43,6 +53,9 @@ public class Clean implements Runnable {
     @CommandLine.Option(names = "--transform-duration", description = "Time to keep transformed tools for, in days.")
     int transformDuration = 30;
 
+    @CommandLine.Option(names = "--max-size", description = "Maximum total size of task outputs, assets, and transformed tools, such as 40G or 512M. Least recently used entries are evicted first, favouring large entries that are cheap to regenerate.")
+    @Nullable String maxSize;
+
     Clean(Main main) {
         this.main = main;
     }
@@ -54,13 +67,15 @@ public void run() {
             if (assetDuration >= 0) {
                 cleanAssets(lockManager);
             }
-            if (outputDuration >= 0) {
-                cleanTaskOutputs(lockManager);
-                cleanOutputObjects(lockManager);
-            }
             if (transformDuration >= 0) {
                 cleanTransforms(lockManager);
             }
+            if (maxSize != null) {
+                enforceMaxSize(lockManager, parseSize(maxSize));
+            }
+            if (outputDuration >= 0) {
+                collectGarbage(lockManager);
+            }
             if (lockDuration >= 0) {
                 lockManager.cleanOldLocks(lockDuration);
             }
@@ -233,85 +248,349 @@ record IndexInfo(String name, FileTime lastAccess, Set<String> hashes) {}
         }
     }
 
-    private void cleanTaskOutputs(LockManager lockManager) {
-        FileTime outdated = FileTime.from(Instant.now().minus(outputDuration, ChronoUnit.DAYS));
+    // Objects and results younger than this are never collected, as a running task may not have recorded them yet
+    private static final Duration GRACE_PERIOD = Duration.ofHours(1);
+
+    /**
+     * Removes task states that have not been used within the output duration, then deletes every object and task
+     * directory entry that no remaining state refers to.
+     */
+    private void collectGarbage(LockManager lockManager) throws IOException {
+        var metadataStore = MetadataStore.open(main.cacheDir);
+        cleanTaskStates(lockManager, metadataStore);
 
-        // We have to lock these to avoid issues if a task is running elsewhere
-        if (!Files.exists(main.cacheDir.resolve("results"))) {
-            // Nothing to clean
+        var liveStates = metadataStore.taskStates();
+        Set<String> liveObjects = new HashSet<>();
+        for (var state : liveStates.values()) {
+            for (var output : state.outputs().values()) {
+                liveObjects.add(output.objectHash() + "." + output.type());
+            }
+        }
+        var graceLimit = FileTime.from(Instant.now().minus(GRACE_PERIOD));
+
+        var deletedObjects = new AtomicInteger();
+        var deletedResults = new AtomicInteger();
+        var reclaimedBytes = new AtomicLong();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var objectsDirectory = main.cacheDir.resolve("objects");
+            if (Files.isDirectory(objectsDirectory)) {
+                try (var dirs = Files.list(objectsDirectory)) {
+                    dirs.forEach(dir -> executor.submit(() -> sweepObjects(dir, liveObjects, graceLimit, deletedObjects, reclaimedBytes)));
+                }
+            }
+            var resultsDirectory = main.cacheDir.resolve("results");
+            if (Files.isDirectory(resultsDirectory)) {
+                try (var dirs = Files.list(resultsDirectory)) {
+                    dirs.forEach(dir -> executor.submit(() -> sweepResults(lockManager, metadataStore, dir, liveStates.keySet(), graceLimit, deletedResults, reclaimedBytes)));
+                }
+            }
+        }
+        if (deletedObjects.get() > 0 || deletedResults.get() > 0) {
+            LOGGER.info("Deleted {} unreferenced output objects and {} stale task results, reclaiming {} MiB", deletedObjects.get(), deletedResults.get(), reclaimedBytes.get() / (1024 * 1024));
+        }
+    }
+
+    private void cleanTaskStates(LockManager lockManager, MetadataStore metadataStore) {
+        long outdated = Instant.now().minus(outputDuration, ChronoUnit.DAYS).toEpochMilli();
+
+        var outdatedKeys = new ArrayList<String>();
+        for (var entry : metadataStore.taskStates().entrySet()) {
+            if (entry.getValue().lastAccessed() < outdated) {
+                outdatedKeys.add(entry.getKey());
+            }
+        }
+        if (outdatedKeys.isEmpty()) {
             return;
         }
-        var deletedOutputs = new AtomicInteger();
-        try (var dirs = Files.list(main.cacheDir.resolve("results"))) {
-            dirs.forEach(dir -> deleteOutdated(lockManager, dir, outdated, deletedOutputs, true));
-        } catch (IOException e) {
-            LOGGER.error("Issue deleting output directories", e);
+        var removedStates = 0;
+        // One lock at a time, so that running tasks are only ever held up by the removal of their own state
+        for (var key : outdatedKeys) {
+            try (var ignored = lockManager.lock("task." + key.replace('/', '.'))) {
+                var state = metadataStore.taskState(key);
+                if (state != null && state.lastAccessed() < outdated) {
+                    metadataStore.remove(key);
+                    removedStates++;
+                }
+            }
         }
-        if (deletedOutputs.get() > 0) {
-            LOGGER.info("Deleted {} outdated output files", deletedOutputs.get());
+        if (removedStates > 0) {
+            metadataStore.compact();
+            LOGGER.info("Removed {} outdated task states", removedStates);
         }
     }
 
-    private void cleanOutputObjects(LockManager lockManager) {
-        FileTime outdated = FileTime.from(Instant.now().minus(outputDuration, ChronoUnit.DAYS));
+    private static void sweepObjects(Path dir, Set<String> liveObjects, FileTime graceLimit, AtomicInteger deleted, AtomicLong reclaimedBytes) {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (var files = Files.list(dir)) {
+            files.forEach(file -> {
+                if (liveObjects.contains(file.getFileName().toString())) {
+                    return;
+                }
+                try {
+                    var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().compareTo(graceLimit) < 0) {
+                        Files.delete(file);
+                        deleted.incrementAndGet();
+                        reclaimedBytes.addAndGet(attributes.size());
+                    }
+                } catch (IOException e) {
+                    LOGGER.error("Issue deleting output object {}", file, e);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("Issue listing output objects in {}", dir, e);
+        }
+        deleteIfEmpty(dir);
+    }
 
-        if (!Files.exists(main.cacheDir.resolve("objects"))) {
-            // Nothing to clean
+    private static void sweepResults(LockManager lockManager, MetadataStore metadataStore, Path dir, Set<String> liveTasks, FileTime graceLimit, AtomicInteger deleted, AtomicLong reclaimedBytes) {
+        if (!Files.isDirectory(dir)) {
             return;
         }
-        var deletedOutputs = new AtomicInteger();
-        try (var dirs = Files.list(main.cacheDir.resolve("objects"))) {
-            dirs.forEach(dir -> deleteOutdated(lockManager, dir, outdated, deletedOutputs, false));
+        var dirName = dir.getFileName().toString();
+        Map<String, List<Path>> groups = new HashMap<>();
+        try (var files = Files.list(dir)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.contains(".")) {
+                    name = name.substring(0, name.indexOf('.'));
+                }
+                if (!liveTasks.contains(dirName + "/" + name)) {
+                    groups.computeIfAbsent(name, k -> new ArrayList<>()).add(file);
+                }
+            });
         } catch (IOException e) {
-            LOGGER.error("Issue deleting object directories", e);
+            LOGGER.error("Issue listing task results in {}", dir, e);
+            return;
         }
-        if (deletedOutputs.get() > 0) {
-            LOGGER.info("Deleted {} outdated output result files", deletedOutputs.get());
+        if (groups.isEmpty()) {
+            return;
         }
+        for (var group : groups.entrySet()) {
+            var name = group.getKey();
+            try (var ignored = lockManager.lock("task." + dirName + "." + name)) {
+                if (metadataStore.taskState(dirName + "/" + name) != null) {
+                    // Recorded by a task that finished since the store was read
+                    continue;
+                }
+                for (var path : group.getValue()) {
+                    try {
+                        if (Files.getLastModifiedTime(path).compareTo(graceLimit) < 0) {
+                            reclaimedBytes.addAndGet(deleteTree(path));
+                            deleted.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        LOGGER.error("Issue deleting task result {}", path, e);
+                    }
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("Issue locking task result {} in {}", name, dir, e);
+            }
+        }
+        deleteIfEmpty(dir);
     }
 
-    private static void deleteOutdated(LockManager lockManager, Path dir, FileTime outdated, AtomicInteger deletedOutputs, boolean root) {
-        if (Files.isDirectory(dir)) {
-            try (var files = Files.list(dir)) {
-                Map<String, Set<Path>> groups = new HashMap<>();
-                files.sorted().forEach(it -> {
-                    String name = it.getFileName().toString();
-                    if (name.contains(".")) {
-                        name = name.substring(0, name.indexOf('.'));
+    private static long deleteTree(Path path) throws IOException {
+        long size = 0;
+        var attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isDirectory()) {
+            try (var children = Files.list(path)) {
+                for (var child : children.toList()) {
+                    size += deleteTree(child);
+                }
+            }
+        } else {
+            size = attributes.size();
+        }
+        Files.delete(path);
+        return size;
+    }
+
+    private static void deleteIfEmpty(Path dir) {
+        try (var files = Files.list(dir)) {
+            if (files.findFirst().isEmpty()) {
+                Files.delete(dir);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Issue deleting empty directory {}", dir, e);
+        }
+    }
+
+    private static final Pattern SIZE = Pattern.compile("^(\\d+)\\s*([KMGT]?)(?:i?B)?$", Pattern.CASE_INSENSITIVE);
+    // Assumed regeneration cost of entries that do not record one, such as downloads and tool transforms
+    private static final long DEFAULT_COST_MILLIS = 1000;
+
+    static long parseSize(String size) {
+        var matcher = SIZE.matcher(size.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid size `" + size + "`; expected a number of bytes with an optional K, M, G, or T suffix");
+        }
+        var shift = switch (matcher.group(2).toUpperCase(Locale.ROOT)) {
+            case "K" -> 10;
+            case "M" -> 20;
+            case "G" -> 30;
+            case "T" -> 40;
+            default -> 0;
+        };
+        return Long.parseLong(matcher.group(1)) << shift;
+    }
+
+    /**
+     * Something that can be evicted from the cache, along with the files it keeps alive. Eviction happens under the
+     * given lock, and a file is deleted once every candidate referencing it has been evicted.
+     */
+    private record EvictionCandidate(String description, long lastAccessed, long cost, List<Path> files, String lock, BooleanSupplier evict) {}
+
+    private void enforceMaxSize(LockManager lockManager, long limit) throws IOException {
+        var now = System.currentTimeMillis();
+        var metadataStore = MetadataStore.open(main.cacheDir);
+        List<EvictionCandidate> candidates = new ArrayList<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, Integer> references = new HashMap<>();
+
+        var objectsDirectory = main.cacheDir.resolve("objects");
+        for (var entry : metadataStore.taskStates().entrySet()) {
+            var key = entry.getKey();
+            var state = entry.getValue();
+            var files = new ArrayList<Path>();
+            for (var output : state.outputs().values()) {
+                var object = objectsDirectory.resolve(output.objectHash().substring(0, 2)).resolve(output.objectHash() + "." + output.type());
+                files.add(object);
+                if (output.size() >= 0) {
+                    sizes.putIfAbsent(object, output.size());
+                }
+            }
+            candidates.add(new EvictionCandidate("task " + key, state.lastAccessed(), state.executionTime(), files, "task." + key.replace('/', '.'), () -> {
+                var current = metadataStore.taskState(key);
+                if (current == null || current.lastAccessed() != state.lastAccessed()) {
+                    // Used or removed since we looked at it; leave it be
+                    return false;
+                }
+                metadataStore.remove(key);
+                return true;
+            }));
+        }
+
+        var assetsDirectory = main.cacheDir.resolve("assets");
+        var indexesDirectory = assetsDirectory.resolve("indexes");
+        if (Files.isDirectory(indexesDirectory)) {
+            try (var indexes = Files.list(indexesDirectory)) {
+                for (var index : indexes.filter(it -> it.getFileName().toString().endsWith(".json")).toList()) {
+                    try {
+                        var attributes = Files.readAttributes(index, BasicFileAttributes.class);
+                        var files = new ArrayList<Path>();
+                        files.add(index);
+                        sizes.put(index, attributes.size());
+                        try (var reader = Files.newBufferedReader(index)) {
+                            var objects = JsonUtils.GSON.fromJson(reader, JsonObject.class).getAsJsonObject("objects");
+                            for (var object : objects.entrySet()) {
+                                var json = object.getValue().getAsJsonObject();
+                                var hash = json.getAsJsonPrimitive("hash").getAsString();
+                                var asset = assetsDirectory.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash);
+                                if (!files.contains(asset)) {
+                                    files.add(asset);
+                                }
+                                sizes.putIfAbsent(asset, json.getAsJsonPrimitive("size").getAsLong());
+                            }
+                        }
+                        var lastAccessed = Math.max(attributes.lastAccessTime().toMillis(), attributes.lastModifiedTime().toMillis());
+                        candidates.add(new EvictionCandidate("asset index " + index.getFileName(), lastAccessed, DEFAULT_COST_MILLIS, files, "assetIndexes." + index.getFileName(), () -> true));
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.error("Issue reading asset index {}", index, e);
                     }
-                    groups.computeIfAbsent(name, k -> new HashSet<>()).add(it);
-                });
-                groups.forEach((name, paths) -> {
-                    try (var ignored = root ? lockManager.lock("task." + dir.getFileName().toString() + "." + name) : null) {
-                        paths.forEach(it -> {
-                            try {
-                                BasicFileAttributes attributes = Files.readAttributes(it, BasicFileAttributes.class);
-                                if (attributes.isRegularFile() && attributes.lastAccessTime().compareTo(outdated) < 0) {
-                                    Files.delete(it);
-                                    deletedOutputs.incrementAndGet();
-                                } else if (attributes.isDirectory()) {
-                                    deleteOutdated(lockManager, it, outdated, deletedOutputs, false);
+                }
+            }
+        }
+
+        try (var dirs = Files.list(main.cacheDir)) {
+            for (var transformDir : dirs.filter(it -> Files.isDirectory(it) && it.getFileName().toString().startsWith("transforms.")).toList()) {
+                try (var jarDirs = Files.list(transformDir)) {
+                    for (var jarDir : jarDirs.filter(Files::isDirectory).toList()) {
+                        var nameHash = HashUtils.hash(jarDir.getFileName().toString());
+                        try (var markers = Files.list(jarDir)) {
+                            for (var marker : markers.filter(it -> it.getFileName().toString().endsWith(".jar.marker")).toList()) {
+                                var markerName = marker.getFileName().toString();
+                                var fileHash = markerName.substring(0, markerName.length() - ".jar.marker".length());
+                                var jar = marker.resolveSibling(fileHash + ".jar");
+                                if (!Files.exists(jar)) {
+                                    continue;
                                 }
-                            } catch (IOException e) {
-                                LOGGER.error("Issue while cleaning output file {} in {}", it.getFileName(), dir.getFileName(), e);
+                                sizes.put(jar, Files.size(jar));
+                                sizes.put(marker, 0L);
+                                var version = transformDir.getFileName().toString().substring("transforms.".length());
+                                // Recorded in the marker's modification time on every use; its access time also moves whenever
+                                // anything reads it, and not at all on file systems mounted without access times
+                                var lastAccessed = Files.getLastModifiedTime(marker).toMillis();
+                                // The marker goes first, so that the transform is never seen as complete without its jar
+                                candidates.add(new EvictionCandidate("transform " + jar, lastAccessed, DEFAULT_COST_MILLIS, List.of(marker, jar), "transform." + version + "." + nameHash + "." + fileHash, () -> true));
                             }
-                        });
+                        }
                     }
-                });
-            } catch (IOException e) {
-                LOGGER.error("Issue deleting output files in {}", dir.getFileName(), e);
+                }
+            }
+        }
+
+        for (var candidate : candidates) {
+            for (var file : candidate.files()) {
+                references.merge(file, 1, Integer::sum);
+                if (!sizes.containsKey(file)) {
+                    sizes.put(file, Files.exists(file) ? Files.size(file) : 0L);
+                }
             }
-            try (var files = Files.list(dir)) {
-                if (files.findFirst().isEmpty()) {
+        }
+        long total = sizes.values().stream().mapToLong(Long::longValue).sum();
+        if (total <= limit) {
+            LOGGER.info("Cache uses {} MiB of its {} MiB budget", total / (1024 * 1024), limit / (1024 * 1024));
+            return;
+        }
+
+        // Score each candidate by how long it has gone unused and how much space it takes per unit of regeneration
+        // cost; the highest scores are evicted first
+        Map<EvictionCandidate, Double> scores = new HashMap<>();
+        for (var candidate : candidates) {
+            long size = 0;
+            for (var file : candidate.files()) {
+                size += sizes.getOrDefault(file, 0L);
+            }
+            double age = Math.max(now - candidate.lastAccessed(), 1);
+            scores.put(candidate, age * size / Math.max(candidate.cost(), DEFAULT_COST_MILLIS));
+        }
+        candidates.sort(Comparator.comparingDouble(scores::get).reversed());
+
+        var evicted = 0;
+        var reclaimed = 0L;
+        for (var candidate : candidates) {
+            if (total <= limit) {
+                break;
+            }
+            try (var ignored = lockManager.lock(candidate.lock())) {
+                if (!candidate.evict().getAsBoolean()) {
+                    continue;
+                }
+                evicted++;
+                for (var file : candidate.files()) {
+                    if (references.merge(file, -1, Integer::sum) > 0) {
+                        continue;
+                    }
                     try {
-                        Files.delete(dir);
+                        if (Files.deleteIfExists(file)) {
+                            var size = sizes.getOrDefault(file, 0L);
+                            total -= size;
+                            reclaimed += size;
+                        }
                     } catch (IOException e) {
-                        LOGGER.error("Failed to delete empty output directory {}", dir, e);
+                        LOGGER.error("Issue deleting {} while evicting {}", file, candidate.description(), e);
                     }
                 }
-            } catch (IOException e) {
-                LOGGER.error("Issue deleting empty output directories", e);
+            } catch (RuntimeException e) {
+                LOGGER.error("Issue evicting {}", candidate.description(), e);
             }
         }
+        if (evicted > 0) {
+            metadataStore.compact();
+        }
+        LOGGER.info("Evicted {} cache entries, reclaiming {} MiB; cache now uses {} MiB of its {} MiB budget", evicted, reclaimed / (1024 * 1024), total / (1024 * 1024), limit / (1024 * 1024));
     }
 }
@@ -1,9 +1,13 @@
 package dev.lukebemish.taskgraphrunner.cli;
 
 import dev.lukebemish.taskgraphrunner.runtime.ArtifactManifest;
+import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
 import dev.lukebemish.taskgraphrunner.runtime.util.OsUtils;
 import picocli.CommandLine;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -47,9 +51,17 @@ static class MavenArtifactManifest {
     ArtifactManifest makeManifest() {
         var manifests = new ArrayList<ArtifactManifest>();
         ArtifactManifest manifest = ArtifactManifest.delegating(manifests);
+        LockManager lockManager = null;
         for (var m : artifactManifests) {
             if (m.maven != null) {
-                manifests.add(ArtifactManifest.mavenDownload(m.artifactManifest, m.maven.mavenUrl, m.maven.targetDirectory));
+                if (lockManager == null) {
+                    try {
+                        lockManager = new LockManager(cacheDir.resolve("locks"));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                manifests.add(ArtifactManifest.mavenDownload(m.artifactManifest, m.maven.mavenUrl, m.maven.targetDirectory, lockManager));
             } else {
                 manifests.add(ArtifactManifest.fromPath(m.artifactManifest));
             }
@@ -70,14 +82,25 @@ public static void main(String[] args) {
     }
 
     int execute(String[] args) {
+        try {
+            return commandLine().execute(args);
+        } finally {
+            MetadataStore.closeAll();
+        }
+    }
+
+    private CommandLine commandLine() {
         return new CommandLine(this)
             .addSubcommand("run", new Run(this))
             .addSubcommand("clean", new Clean(this))
             .addSubcommand("neoform", new NeoForm(this))
             .addSubcommand("vanilla", new Vanilla(this))
             .addSubcommand("mark", new Mark(this))
-            .addSubcommand("mermaid", new Mermaid(this))
-            .execute(args);
+            .addSubcommand("verify", new Verify(this))
+            .addSubcommand("cache", new CommandLine(new Cache())
+                .addSubcommand("export", new Cache.Export(this))
+                .addSubcommand("import", new Cache.Import(this)))
+            .addSubcommand("mermaid", new Mermaid(this));
     }
 
     private static Path defaultCacheDirectory() {
@@ -4,6 +4,7 @@
 import dev.lukebemish.taskgraphrunner.runtime.util.FileUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.JsonUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
 import picocli.CommandLine;
 
 import java.io.IOException;
@@ -36,6 +37,7 @@ private record SingleTask(String type, String state, List<String> outputs) {}
     public void run() {
         try {
             var lockManager = new LockManager(main.cacheDir.resolve("locks"));
+            var metadataStore = MetadataStore.open(main.cacheDir);
             var now = FileTime.from(Instant.now());
             for (var taskRecordJson : taskRecordJsons) {
                 try (var reader = Files.newBufferedReader(taskRecordJson)) {
@@ -55,6 +57,7 @@ public void run() {
                             if (Files.exists(state)) {
                                 FileUtils.setLastAccessedTime(state, now);
                             }
+                            metadataStore.markAccessed(state.getParent().getFileName().toString()+"/"+name, now.toMillis());
                         }
                     }
                 }
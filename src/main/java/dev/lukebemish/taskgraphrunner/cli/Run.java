@@ -7,12 +7,14 @@
 import dev.lukebemish.taskgraphrunner.runtime.Context;
 import dev.lukebemish.taskgraphrunner.runtime.Invocation;
 import dev.lukebemish.taskgraphrunner.runtime.Task;
+import dev.lukebemish.taskgraphrunner.runtime.util.HttpRemoteCache;
 import dev.lukebemish.taskgraphrunner.runtime.util.JsonUtils;
 import org.jspecify.annotations.Nullable;
 import picocli.CommandLine;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -22,6 +24,7 @@
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 @CommandLine.Command(name = "run", mixinStandardHelpOptions = true, description = "Run a task graph")
 public class Run implements Runnable {
@@ -46,6 +49,12 @@ public class Run implements Runnable {
     )
     boolean refreshCachedAssets = false;
 
+    @CommandLine.Option(
+        names = "--verify-cached-assets",
+        description = "Hash every cached asset object again, rather than trusting those already verified."
+    )
+    boolean verifyCachedAssets = false;
+
     @CommandLine.Option(
         names = "--use-launcher-asset-root",
         negatable = true,
@@ -67,6 +76,25 @@ public class Run implements Runnable {
     )
     @Nullable Path taskRecordJson;
 
+    @CommandLine.Option(
+        names = "--lower-cache-dir",
+        arity = "*",
+        description = "Specifies one or more read-only cache directories, in order of preference, to use task outputs from when they are missing from the cache directory."
+    )
+    List<Path> lowerCacheDirs = new ArrayList<>();
+
+    @CommandLine.Option(names = "--remote-cache", description = "Base URL of an HTTP cache to retrieve task outputs from before running tasks, and to store them in after.")
+    @Nullable URI remoteCache;
+
+    @CommandLine.Option(names = "--remote-cache-read-only", description = "Only retrieve task outputs from the remote cache.")
+    boolean remoteCacheReadOnly = false;
+
+    @CommandLine.Option(names = "--remote-cache-max-object-size", description = "Largest task output to transfer to or from the remote cache, such as 512M.")
+    String remoteCacheMaxObjectSize = "1G";
+
+    @CommandLine.Option(names = "--remote-cache-parallelism", description = "Maximum number of concurrent remote cache requests.")
+    int remoteCacheParallelism = 8;
+
     private final Main main;
 
     Run(Main main) {
@@ -110,6 +138,14 @@ private static List<Path> launcherInstallationPaths() {
 
     @Override
     public void run() {
+        execute(invocation -> {});
+    }
+
+    /**
+     * Executes every work item of the config, passing each invocation to the consumer once its results are in place.
+     */
+    void execute(Consumer<Invocation> onExecuted) {
+        var remoteCache = this.remoteCache == null ? null : new HttpRemoteCache(this.remoteCache, remoteCacheReadOnly, Clean.parseSize(remoteCacheMaxObjectSize), remoteCacheParallelism);
         try (var reader = Files.newBufferedReader(config, StandardCharsets.UTF_8)) {
             var config = JsonUtils.GSON.fromJson(reader, Config.class);
             List<WorkItem> workItems = new ArrayList<>(config.workItems);
@@ -126,7 +162,8 @@ public void run() {
                 workItem.parameters.putAll(parameters);
                 var assetsOptions = Context.AssetDownloadOptions.builder()
                     .assetRoot(main.cacheDir.resolve("assets"))
-                    .redownloadAssets(refreshCachedAssets);
+                    .redownloadAssets(refreshCachedAssets)
+                    .verifyAssets(verifyCachedAssets);
                 var launcherDirs = new ArrayList<Path>();
                 if (useLauncherAssetRoot) {
                     launcherDirs.addAll(this.launcherDirs);
@@ -134,6 +171,12 @@ public void run() {
                 assetsOptions.potentialLauncherRoots(launcherDirs);
                 try (Invocation invocation = new Invocation(main.cacheDir, config.aliases, assetsOptions.build(), useCache)) {
                     invocation.artifactManifest(main.makeManifest());
+                    for (var lowerCacheDir : lowerCacheDirs) {
+                        invocation.lowerCacheLayer(lowerCacheDir);
+                    }
+                    if (remoteCache != null) {
+                        invocation.remoteCache(remoteCache);
+                    }
                     for (var model : config.tasks) {
                         var task = Task.task(model, workItem, invocation);
                         invocation.addTask(task);
@@ -146,6 +189,7 @@ public void run() {
                         }, entry.getValue());
                     }
                     invocation.execute(results, taskRecordJson);
+                    onExecuted.accept(invocation);
                 }
             }
         } catch (IOException e) {
@@ -0,0 +1,258 @@
+package dev.lukebemish.taskgraphrunner.cli;
+
+import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+@CommandLine.Command(name = "verify", mixinStandardHelpOptions = true, description = "Check cached objects against their hashes, and task state against the objects it refers to")
+public class Verify implements Callable<Integer> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Verify.class);
+
+    private static final Pattern OUTPUT_OBJECT = Pattern.compile("^([0-9a-f]{64})\\..+$");
+    // Files that are still being written next to the objects, before being moved into place
+    private static final Pattern IN_FLIGHT = Pattern.compile("^\\..*|.*\\.(partial|tmp)$");
+    private static final Pattern ASSET_OBJECT = Pattern.compile("^[0-9a-f]{40}$");
+    private static final String LAST_VERIFIED = "verify.last";
+
+    private final Main main;
+
+    @CommandLine.Option(names = "--incremental", description = "Only check objects added or written since the last verification.")
+    boolean incremental = false;
+
+    @CommandLine.Option(names = "--parallelism", description = "Maximum number of objects to read at once.")
+    int parallelism = 4;
+
+    Verify(Main main) {
+        this.main = main;
+    }
+
+    private record Problem(Path path, String description) {}
+
+    private record ObjectFile(Path path, BasicFileAttributes attributes) {}
+
+    @Override
+    public Integer call() {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        try {
+            var startTime = FileTime.from(Instant.now());
+            var lastVerifiedFile = main.cacheDir.resolve(LAST_VERIFIED);
+            // Objects are skipped if they are unchanged since the last clean pass: not modified since then, and the
+            // same file as was present then. Modification times alone miss objects hard linked in with old times.
+            FileTime since = null;
+            Map<String, String> verified = Map.of();
+            if (incremental && Files.exists(lastVerifiedFile)) {
+                since = Files.getLastModifiedTime(lastVerifiedFile);
+                verified = readVerified(lastVerifiedFile);
+            }
+
+            var lockManager = new LockManager(main.cacheDir.resolve("locks"));
+            var problems = new ArrayList<Problem>();
+            var checked = new AtomicInteger();
+            var checkedBytes = new AtomicLong();
+            var semaphore = new Semaphore(parallelism);
+            var futures = new ArrayList<Future<Problem>>();
+            var outputObjects = objects(main.cacheDir.resolve("objects"));
+            var assetObjects = objects(main.cacheDir.resolve("assets").resolve("objects"));
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (var object : outputObjects) {
+                    var matcher = OUTPUT_OBJECT.matcher(object.path().getFileName().toString());
+                    if (matcher.matches() && !unchanged(object, since, verified)) {
+                        futures.add(executor.submit(() -> check(object.path(), "SHA-256", matcher.group(1), semaphore, checked, checkedBytes)));
+                    }
+                }
+                for (var object : assetObjects) {
+                    var name = object.path().getFileName().toString();
+                    if (ASSET_OBJECT.matcher(name).matches() && !unchanged(object, since, verified)) {
+                        futures.add(executor.submit(() -> check(object.path(), "SHA-1", name, semaphore, checked, checkedBytes)));
+                    }
+                }
+                for (var future : futures) {
+                    var problem = future.get();
+                    if (problem != null) {
+                        problems.add(problem);
+                    }
+                }
+            }
+
+            var quarantine = main.cacheDir.resolve("quarantine");
+            for (var problem : problems) {
+                LOGGER.error("{}: {}", problem.path(), problem.description());
+                var target = quarantine.resolve(main.cacheDir.relativize(problem.path()));
+                Files.createDirectories(target.getParent());
+                Files.move(problem.path(), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!problems.isEmpty()) {
+                LOGGER.warn("Moved {} corrupt objects to {}", problems.size(), quarantine);
+            }
+
+            var invalidated = verifyTaskStates(lockManager);
+
+            LOGGER.info("Checked {} objects ({} MiB) and found {} corrupt; invalidated {} task states", checked.get(), checkedBytes.get() / (1024 * 1024), problems.size(), invalidated);
+            if (problems.isEmpty()) {
+                // Only a clean pass moves the incremental baseline forward
+                var lines = new ArrayList<String>();
+                for (var object : outputObjects) {
+                    lines.add(relativeName(object) + "\t" + fingerprint(object));
+                }
+                for (var object : assetObjects) {
+                    lines.add(relativeName(object) + "\t" + fingerprint(object));
+                }
+                Files.write(lastVerifiedFile, lines);
+                Files.setLastModifiedTime(lastVerifiedFile, startTime);
+            }
+            return problems.isEmpty() && invalidated == 0 ? 0 : 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<ObjectFile> objects(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        var objects = new ArrayList<ObjectFile>();
+        try (var prefixes = Files.list(directory)) {
+            for (var prefix : prefixes.filter(Files::isDirectory).toList()) {
+                try (var files = Files.list(prefix)) {
+                    for (var file : files.toList()) {
+                        if (IN_FLIGHT.matcher(file.getFileName().toString()).matches()) {
+                            continue;
+                        }
+                        try {
+                            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                            if (attributes.isRegularFile()) {
+                                objects.add(new ObjectFile(file, attributes));
+                            }
+                        } catch (NoSuchFileException ignored) {
+                            // Removed concurrently
+                        }
+                    }
+                }
+            }
+        }
+        return objects;
+    }
+
+    private boolean unchanged(ObjectFile object, @Nullable FileTime since, Map<String, String> verified) {
+        return since != null
+            && object.attributes().lastModifiedTime().compareTo(since) < 0
+            && fingerprint(object).equals(verified.get(relativeName(object)));
+    }
+
+    private String relativeName(ObjectFile object) {
+        return main.cacheDir.relativize(object.path()).toString();
+    }
+
+    private static String fingerprint(ObjectFile object) {
+        var attributes = object.attributes();
+        // File keys are not available everywhere; creation times are the closest substitute
+        var identity = attributes.fileKey() != null ? attributes.fileKey().toString() : attributes.creationTime().toString();
+        return identity + " " + attributes.size();
+    }
+
+    private static Map<String, String> readVerified(Path file) throws IOException {
+        var verified = new HashMap<String, String>();
+        for (var line : Files.readAllLines(file)) {
+            var parts = line.split("\t", 2);
+            if (parts.length == 2) {
+                verified.put(parts[0], parts[1]);
+            }
+        }
+        return verified;
+    }
+
+    private static Problem check(Path object, String algorithm, String expected, Semaphore semaphore, AtomicInteger checked, AtomicLong checkedBytes) throws IOException, InterruptedException, NoSuchAlgorithmException {
+        semaphore.acquire();
+        try {
+            var digest = MessageDigest.getInstance(algorithm);
+            long size = 0;
+            try (InputStream is = Files.newInputStream(object)) {
+                var buffer = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    size += read;
+                }
+            }
+            checked.incrementAndGet();
+            checkedBytes.addAndGet(size);
+            var actual = HexFormat.of().formatHex(digest.digest());
+            if (!actual.equals(expected)) {
+                return new Problem(object, "contents hash to " + actual);
+            }
+            return null;
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    /**
+     * Removes task states whose outputs are missing or no longer the recorded size, so those tasks rerun instead of
+     * failing when their outputs are requested.
+     */
+    private int verifyTaskStates(LockManager lockManager) throws IOException {
+        var metadataStore = MetadataStore.open(main.cacheDir);
+        var objectsDirectory = main.cacheDir.resolve("objects");
+        var invalidated = 0;
+        for (var entry : metadataStore.taskStates().entrySet()) {
+            var key = entry.getKey();
+            if (isIntact(entry.getValue(), objectsDirectory)) {
+                continue;
+            }
+            try (var ignored = lockManager.lock("task." + key.replace('/', '.'))) {
+                var state = metadataStore.taskState(key);
+                if (state != null && !isIntact(state, objectsDirectory)) {
+                    LOGGER.error("Task state {} refers to missing or damaged outputs; it will be rerun", key);
+                    metadataStore.remove(key);
+                    invalidated++;
+                }
+            }
+        }
+        return invalidated;
+    }
+
+    private static boolean isIntact(MetadataStore.TaskState state, Path objectsDirectory) throws IOException {
+        for (var output : state.outputs().values()) {
+            var object = objectsDirectory.resolve(output.objectHash().substring(0, 2)).resolve(output.objectHash() + "." + output.type());
+            if (!Files.isRegularFile(object)) {
+                return false;
+            }
+            if (output.size() >= 0 && Files.size(object) != output.size()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
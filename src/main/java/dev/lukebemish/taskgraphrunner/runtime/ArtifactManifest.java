@@ -1,6 +1,7 @@
 package dev.lukebemish.taskgraphrunner.runtime;
 
 import dev.lukebemish.taskgraphrunner.runtime.util.DownloadUtils;
+import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
 import dev.lukebemish.taskgraphrunner.runtime.util.Tools;
 import org.jspecify.annotations.Nullable;
 
@@ -9,17 +10,47 @@
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 public abstract sealed class ArtifactManifest {
     protected ArtifactManifest() {}
 
+    /**
+     * An artifact to look up.
+     * @param download where the artifact can be downloaded from, along with its checksum and size, if known
+     */
+    protected record ArtifactRequest(String notation, DownloadUtils.@Nullable Spec download) {}
+
     protected abstract @Nullable Path tryFindArtifact(String notation);
 
+    /**
+     * Looks up several artifacts at once, which implementations may do concurrently.
+     * @return the artifacts found; notations that could not be found are absent
+     */
+    protected Map<String, Path> tryFindArtifacts(Collection<ArtifactRequest> requests) {
+        var found = new HashMap<String, Path>();
+        for (var request : requests) {
+            var artifact = tryFindArtifact(request.notation());
+            if (artifact != null) {
+                found.put(request.notation(), artifact);
+            }
+        }
+        return found;
+    }
+
     public Path findArtifact(String notation) {
         var artifact = tryFindArtifact(notation);
         if (artifact == null) {
@@ -45,7 +76,10 @@ public String absolute(String line) {
     }
 
     public Path resolve(String line) {
-        if (line.startsWith("file:")) {
+        if (line.startsWith("artifact:") && line.indexOf(' ') != -1) {
+            // Carries download details, which only a lookup through resolveAll makes use of
+            return resolveAll(List.of(line)).getFirst();
+        } else if (line.startsWith("file:")) {
             return Path.of(line.substring("file:".length()));
         } else if (line.startsWith("artifact:")) {
             var notation = line.substring("artifact:".length());
@@ -62,6 +96,62 @@ public Path resolve(String line) {
         }
     }
 
+    /**
+     * Resolves a list of library notations, as would {@link #resolve(String)} for each, looking up all artifacts they
+     * refer to at once. An {@code artifact:} line may be followed by space-separated {@code sha1=}, {@code size=} and
+     * {@code url=} attributes, in which case the artifact is downloaded from that URL if it is missing, and verified
+     * against the checksum and size.
+     */
+    public List<Path> resolveAll(List<String> lines) {
+        var requests = new LinkedHashMap<String, ArtifactRequest>();
+        for (var line : lines) {
+            var request = artifactRequest(line);
+            if (request != null && (request.download() != null || !requests.containsKey(request.notation()))) {
+                requests.put(request.notation(), request);
+            }
+        }
+        var artifacts = tryFindArtifacts(requests.values());
+        var paths = new ArrayList<Path>(lines.size());
+        for (var line : lines) {
+            var request = artifactRequest(line);
+            if (request == null) {
+                paths.add(resolve(line));
+            } else {
+                var artifact = artifacts.get(request.notation());
+                if (artifact == null) {
+                    throw new IllegalArgumentException("No such artifact `"+request.notation()+"`");
+                }
+                paths.add(artifact);
+            }
+        }
+        return paths;
+    }
+
+    private static @Nullable ArtifactRequest artifactRequest(String line) {
+        if (line.startsWith("tool:")) {
+            var notation = Tools.tool(line.substring("tool:".length()));
+            return notation == null ? null : new ArtifactRequest(notation, null);
+        } else if (!line.startsWith("artifact:")) {
+            return null;
+        }
+        var parts = line.substring("artifact:".length()).split(" ");
+        var attributes = new HashMap<String, String>();
+        for (int i = 1; i < parts.length; i++) {
+            var separator = parts[i].indexOf('=');
+            if (separator == -1) {
+                throw new IllegalArgumentException("Invalid attribute `"+parts[i]+"` in library notation: "+line);
+            }
+            attributes.put(parts[i].substring(0, separator), parts[i].substring(separator + 1));
+        }
+        var sha1 = attributes.get("sha1");
+        var size = attributes.get("size");
+        var url = attributes.get("url");
+        if (sha1 == null || size == null || url == null) {
+            return new ArtifactRequest(parts[0], null);
+        }
+        return new ArtifactRequest(parts[0], new DownloadUtils.Spec.ChecksumAndSize(URI.create(url), sha1, "SHA-1", Long.parseLong(size)));
+    }
+
     public static ArtifactManifest fromPath(Path manifest) {
         return new PathArtifactManifest(manifest);
     }
@@ -71,7 +161,14 @@ public static ArtifactManifest delegating(List<ArtifactManifest> delegates) {
     }
 
     public static ArtifactManifest mavenDownload(Path mavenArtifactManifest, URI mavenUrl, Path targetDirectory) {
-        return new MavenArtifactManifest(mavenArtifactManifest, mavenUrl, targetDirectory);
+        return mavenDownload(mavenArtifactManifest, mavenUrl, targetDirectory, null);
+    }
+
+    /**
+     * @param lockManager if present, used to keep other processes from downloading the same artifact at the same time
+     */
+    public static ArtifactManifest mavenDownload(Path mavenArtifactManifest, URI mavenUrl, Path targetDirectory, @Nullable LockManager lockManager) {
+        return new MavenArtifactManifest(mavenArtifactManifest, mavenUrl, targetDirectory, lockManager);
     }
 
     private static final class DelegatingArtifactManifest extends ArtifactManifest {
@@ -91,6 +188,21 @@ public Path tryFindArtifact(String notation) {
             }
             return null;
         }
+
+        @Override
+        protected Map<String, Path> tryFindArtifacts(Collection<ArtifactRequest> requests) {
+            var found = new HashMap<String, Path>();
+            var remaining = new ArrayList<>(requests);
+            for (var delegate : delegates) {
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                var artifacts = delegate.tryFindArtifacts(remaining);
+                found.putAll(artifacts);
+                remaining.removeIf(request -> artifacts.containsKey(request.notation()));
+            }
+            return found;
+        }
     }
 
     private static final class PathArtifactManifest extends ArtifactManifest {
@@ -115,38 +227,111 @@ public PathArtifactManifest(Path manifest) {
         }
     }
 
-    private synchronized static void appendArtifact(Path propertiesFile, String notation, Path path) throws IOException {
+    private synchronized static void appendArtifacts(Path propertiesFile, Map<String, Path> artifacts) throws IOException {
+        if (artifacts.isEmpty()) {
+            return;
+        }
         var properties = new Properties();
         if (Files.exists(propertiesFile)) {
             try (var reader = Files.newBufferedReader(propertiesFile, StandardCharsets.UTF_8)) {
                 properties.load(reader);
             }
         }
-        properties.setProperty(notation, path.toAbsolutePath().toString());
-        try (var writer = Files.newBufferedWriter(propertiesFile, StandardCharsets.UTF_8)) {
-            properties.store(writer, null);
+        for (var entry : artifacts.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toAbsolutePath().toString());
+        }
+        // Written to a temporary file and moved into place, so that the manifest is never seen half-written
+        var parent = propertiesFile.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        var temporary = parent.resolve("." + propertiesFile.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (var writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temporary, propertiesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
         }
     }
 
     private static final class MavenArtifactManifest extends ArtifactManifest {
+        private static final Pattern NOTATION = Pattern.compile("^(?<group>[^:@]+):(?<artifact>[^:@]+):(?<version>[^:@]+)(:(?<classifier>[^:@]+))?(@(?<extension>[^:@]+))?$");
+
         private final Path mavenArtifactManifest;
         private final URI mavenUrl;
         private final Path targetDirectory;
-        private final Map<String, Path> artifacts = new HashMap<>();
+        private final @Nullable LockManager lockManager;
+        private final Map<String, Path> artifacts = new ConcurrentHashMap<>();
 
-        public MavenArtifactManifest(Path mavenArtifactManifest, URI mavenUrl, Path targetDirectory) {
+        public MavenArtifactManifest(Path mavenArtifactManifest, URI mavenUrl, Path targetDirectory, @Nullable LockManager lockManager) {
             this.mavenArtifactManifest = mavenArtifactManifest;
             this.mavenUrl = mavenUrl;
             this.targetDirectory = targetDirectory;
+            this.lockManager = lockManager;
         }
 
         @Override
         protected @Nullable Path tryFindArtifact(String notation) {
-            if (artifacts.containsKey(notation)) {
-                return artifacts.get(notation);
+            return tryFindArtifacts(List.of(new ArtifactRequest(notation, null))).get(notation);
+        }
+
+        @Override
+        protected Map<String, Path> tryFindArtifacts(Collection<ArtifactRequest> requests) {
+            var found = new HashMap<String, Path>();
+            var relativePaths = new LinkedHashMap<ArtifactRequest, String>();
+            for (var request : requests) {
+                var existing = artifacts.get(request.notation());
+                if (existing != null) {
+                    found.put(request.notation(), existing);
+                    continue;
+                }
+                var relative = relativePath(request.notation());
+                if (relative != null) {
+                    relativePaths.put(request, relative);
+                }
+            }
+            if (relativePaths.isEmpty()) {
+                return found;
             }
-            var pattern = Pattern.compile("^(?<group>[^:@]+):(?<artifact>[^:@]+):(?<version>[^:@]+)(:(?<classifier>[^:@]+))?(@(?<extension>[^:@]+))?$");
-            var matcher = pattern.matcher(notation);
+            // Downloaded concurrently, then recorded in the manifest with a single write
+            var targets = new LinkedHashMap<String, Path>();
+            var futures = new ArrayList<Future<?>>();
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (var entry : relativePaths.entrySet()) {
+                    var target = targetDirectory.resolve(entry.getValue());
+                    // Where the checksum is known, the download is verified as it streams, and an existing file is
+                    // checked against its recorded fingerprint rather than being fetched again
+                    var spec = entry.getKey().download() != null
+                        ? entry.getKey().download()
+                        : new DownloadUtils.Spec.Simple(mavenUrl.resolve(entry.getValue()));
+                    targets.put(entry.getKey().notation(), target);
+                    futures.add(executor.submit(() -> {
+                        Files.createDirectories(target.getParent());
+                        DownloadUtils.download(spec, target, lockManager);
+                        return null;
+                    }));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            try {
+                appendArtifacts(mavenArtifactManifest, targets);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            artifacts.putAll(targets);
+            found.putAll(targets);
+            return found;
+        }
+
+        private static @Nullable String relativePath(String notation) {
+            var matcher = NOTATION.matcher(notation);
             if (!matcher.matches()) {
                 return null;
             }
@@ -158,18 +343,7 @@ public MavenArtifactManifest(Path mavenArtifactManifest, URI mavenUrl, Path targ
             if (extension == null) {
                 extension = "jar";
             }
-            var relative = group.replace('.', '/')+"/"+artifact+"/"+version+"/"+artifact+"-"+version+(classifier == null ? "" : "-"+classifier)+"."+extension;
-            var target = targetDirectory.resolve(relative);
-            try {
-                Files.createDirectories(target.getParent());
-                var fullUrl = mavenUrl.resolve(relative);
-                DownloadUtils.download(new DownloadUtils.Spec.Simple(fullUrl), target);
-                artifacts.put(notation, target);
-                appendArtifact(mavenArtifactManifest, notation, target);
-                return target;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+            return group.replace('.', '/')+"/"+artifact+"/"+version+"/"+artifact+"-"+version+(classifier == null ? "" : "-"+classifier)+"."+extension;
         }
     }
 }
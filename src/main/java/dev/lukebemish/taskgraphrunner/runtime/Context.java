@@ -2,6 +2,8 @@
 
 import dev.lukebemish.taskgraphrunner.model.Output;
 import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
+import org.jspecify.annotations.Nullable;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -16,20 +18,32 @@
 public interface Context {
     Path taskOutputPath(Task task, String outputName);
 
-    Path taskOutputMarkerPath(Task task, String outputName);
-
     Path pathFromHash(String hash, String outputType);
 
     Path existingTaskOutput(Task task, String outputName);
 
+    /**
+     * {@return the path of the human-readable state written in explain mode, which also identifies the task's stored state}
+     */
     Path taskStatePath(Task task);
 
+    MetadataStore.@Nullable TaskState taskState(Task task);
+
+    void saveTaskState(Task task, MetadataStore.TaskState state);
+
+    void markTaskAccessed(Task task);
+
     Path taskDirectory(Task task);
 
     Path taskWorkingDirectory(Task task);
 
     Task getTask(String name);
 
+    /**
+     * {@return the snapshot of the input's resolved paths for this invocation, resolving it on first use}
+     */
+    TaskInput.FileListSnapshot fileListSnapshot(TaskInput.FileListInput input);
+
     Path findArtifact(String notation);
 
     ArtifactManifest artifactManifest();
@@ -66,11 +80,13 @@ final class AssetDownloadOptions {
         private final Path assetRoot;
         private final List<Path> potentialLauncherRoots;
         private final boolean redownloadAssets;
+        private final boolean verifyAssets;
 
-        private AssetDownloadOptions(Path assetRoot, List<Path> potentialLauncherRoots, boolean redownloadAssets) {
+        private AssetDownloadOptions(Path assetRoot, List<Path> potentialLauncherRoots, boolean redownloadAssets, boolean verifyAssets) {
             this.assetRoot = assetRoot;
             this.potentialLauncherRoots = potentialLauncherRoots;
             this.redownloadAssets = redownloadAssets;
+            this.verifyAssets = verifyAssets;
         }
 
         public Path assetRoot() {
@@ -85,6 +101,13 @@ public boolean redownloadAssets() {
             return redownloadAssets;
         }
 
+        /**
+         * {@return whether every cached asset object should be hashed again, rather than trusting those recorded as verified}
+         */
+        public boolean verifyAssets() {
+            return verifyAssets;
+        }
+
         public static Builder builder() {
             return new Builder();
         }
@@ -93,6 +116,7 @@ public static final class Builder {
             private Path assetRoot;
             private List<Path> potentialLauncherRoots = List.of();
             private boolean redownloadAssets = false;
+            private boolean verifyAssets = false;
 
             private Builder() {}
 
@@ -111,8 +135,13 @@ public Builder redownloadAssets(boolean redownloadAssets) {
                 return this;
             }
 
+            public Builder verifyAssets(boolean verifyAssets) {
+                this.verifyAssets = verifyAssets;
+                return this;
+            }
+
             public AssetDownloadOptions build() {
-                return new AssetDownloadOptions(Objects.requireNonNull(assetRoot), List.copyOf(Objects.requireNonNull(potentialLauncherRoots)), redownloadAssets);
+                return new AssetDownloadOptions(Objects.requireNonNull(assetRoot), List.copyOf(Objects.requireNonNull(potentialLauncherRoots)), redownloadAssets, verifyAssets);
             }
         }
     }
@@ -3,17 +3,22 @@
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import dev.lukebemish.taskgraphrunner.model.Output;
+import dev.lukebemish.taskgraphrunner.runtime.util.FileUtils;
+import dev.lukebemish.taskgraphrunner.runtime.util.HashUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.JsonUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
 import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HexFormat;
@@ -21,29 +26,44 @@
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 
 public class Invocation implements Context, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Invocation.class);
     private static final ThreadFactory THREAD_FACTORY = Thread.ofVirtual().name("TaskGraphRunner-", 1).factory();
 
     private final Path cacheDirectory;
+    private final Path contentAddressableDirectory;
+    private final Path resultsDirectory;
+    private final Function<Task, TaskKey> keyFactory = this::createKey;
 
     private final LockManager lockManager;
+    private final MetadataStore metadataStore;
 
     private final Map<String, Task> tasks = new HashMap<>();
+    private final Map<TaskInput.FileListInput, TaskInput.FileListSnapshot> fileListSnapshots = new ConcurrentHashMap<>();
     private final Map<String, Output> aliases;
     private final List<ArtifactManifest> artifactManifests = new ArrayList<>();
     private final ArtifactManifest artifactManifest = ArtifactManifest.delegating(artifactManifests);
     private final boolean useCached;
     private final AssetDownloadOptions assetOptions;
     private final ExecutorService executor = Executors.newThreadPerTaskExecutor(THREAD_FACTORY);
+    private final List<CacheLayer> lowerCacheLayers = new ArrayList<>();
+    private @Nullable RemoteCache remoteCache;
+    private volatile boolean remoteCacheFailed;
 
     public Invocation(Path cacheDirectory, Map<String, Output> aliases, AssetDownloadOptions assetDownloadOptions, boolean useCached) throws IOException {
         this.cacheDirectory = cacheDirectory;
+        this.contentAddressableDirectory = cacheDirectory.resolve("objects");
+        this.resultsDirectory = cacheDirectory.resolve("results");
         this.lockManager = new LockManager(cacheDirectory.resolve("locks"));
+        this.metadataStore = MetadataStore.open(cacheDirectory);
         this.aliases = aliases;
         this.useCached = useCached;
         this.assetOptions = assetDownloadOptions;
@@ -62,90 +82,273 @@ public void artifactManifest(ArtifactManifest manifest) {
         artifactManifests.add(manifest);
     }
 
-    @Override
-    public Path taskOutputPath(Task task, String outputName) {
-        var outputType = task.outputTypes().get(outputName);
-        if (outputType == null) {
-            throw new IllegalArgumentException("No such output `"+outputName+"` for task `"+task.name()+"`");
-        }
-        var contentsHash = contentsHash(task);
-        return taskDirectory(task).resolve(contentsHash+"."+outputName+"."+task.outputId()+"."+outputType);
+    private record CacheLayer(Path directory, Path contentAddressableDirectory, MetadataStore metadataStore) {}
+
+    /**
+     * Adds a read-only cache directory in which to look for task states and outputs missing from this invocation's
+     * cache directory. Layers are consulted in the order they are added, and outputs found in them are linked into the
+     * cache directory where possible.
+     */
+    public void lowerCacheLayer(Path cacheDirectory) throws IOException {
+        lowerCacheLayers.add(new CacheLayer(cacheDirectory, cacheDirectory.resolve("objects"), MetadataStore.openReadOnly(cacheDirectory)));
+    }
+
+    public void remoteCache(RemoteCache remoteCache) {
+        this.remoteCache = remoteCache;
     }
 
     @Override
-    public Path taskOutputMarkerPath(Task task, String outputName) {
-        var outputType = task.outputTypes().get(outputName);
-        if (outputType == null) {
+    public Path taskOutputPath(Task task, String outputName) {
+        var path = key(task).outputPath(outputName, task.outputId());
+        if (path == null) {
             throw new IllegalArgumentException("No such output `"+outputName+"` for task `"+task.name()+"`");
         }
-        var contentsHash = contentsHash(task);
-        return taskDirectory(task).resolve(contentsHash+"."+outputName+"."+task.outputId()+"."+outputType+".txt");
+        return path;
     }
 
     @Override
     public Path existingTaskOutput(Task task, String outputName) {
-        var outputType = task.outputTypes().get(outputName);
-        if (outputType == null) {
+        var key = key(task);
+        if (key.outputType(outputName) == null) {
             throw new IllegalArgumentException("No such output `"+outputName+"` for task `"+task.name()+"`");
         }
-        var contentsHash = contentsHash(task);
-        var markerPath = taskDirectory(task).resolve(contentsHash+"."+outputName+"."+task.outputId()+"."+outputType+".txt");
-        if (!Files.exists(markerPath)) {
+        var state = metadataStore.taskState(key.storeKey());
+        if (state == null || state.outputId() != task.outputId()) {
             return null;
         }
-        try {
-            var contents = Files.readString(markerPath, StandardCharsets.UTF_8);
-            var prefix = contents.substring(0, 2);
-            return contentAddressableDirectory().resolve(prefix).resolve(contents + "." + outputType);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+        var output = state.outputs().get(outputName);
+        if (output == null) {
+            return null;
         }
+        return pathFromHash(output.objectHash(), output.type());
     }
 
     @Override
     public Path pathFromHash(String hash, String outputType) {
         var prefix = hash.substring(0, 2);
-        return contentAddressableDirectory().resolve(prefix).resolve(hash + "." + outputType);
+        return contentAddressableDirectory.resolve(prefix).resolve(hash + "." + outputType);
     }
 
-    private String contentsHash(Task task) {
-        MessageDigest digestContents;
-        try {
-            digestContents = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-        task.hashContents(RecordedInput.ByteConsumer.of(digestContents), this);
-        return HexFormat.of().formatHex(digestContents.digest());
+    private TaskKey key(Task task) {
+        return task.key(keyFactory);
     }
 
-    private Path contentAddressableDirectory() {
-        return cacheDirectory.resolve("objects");
+    private TaskKey createKey(Task task) {
+        var referenceHash = HexFormat.of().formatHex(task.referenceDigest(this));
+        var contentsHash = HexFormat.of().formatHex(task.contentsDigest(this));
+        return new TaskKey(task.type(), referenceHash, contentsHash, resultsDirectory, task.outputTypes());
     }
 
     @Override
     public Path taskDirectory(Task task) {
-        MessageDigest digestReference;
-        try {
-            digestReference = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-        task.hashReference(RecordedInput.ByteConsumer.of(digestReference), this);
-        var hash = HexFormat.of().formatHex(digestReference.digest());
-        return cacheDirectory.resolve("results").resolve(task.type() +"."+hash);
+        return key(task).directory();
     }
 
     @Override
     public Path taskStatePath(Task task) {
-        var contentsHash = contentsHash(task);
-        return taskDirectory(task).resolve(contentsHash+".json");
+        return key(task).statePath();
     }
 
     @Override
     public Path taskWorkingDirectory(Task task) {
-        var contentsHash = contentsHash(task);
-        return taskDirectory(task).resolve(contentsHash);
+        return key(task).workingDirectory();
+    }
+
+    @Override
+    public MetadataStore.@Nullable TaskState taskState(Task task) {
+        var key = key(task);
+        var state = metadataStore.taskState(key.storeKey());
+        if (state == null && !lowerCacheLayers.isEmpty()) {
+            state = lowerLayerTaskState(key);
+        }
+        if (state == null && remoteCache != null && !remoteCacheFailed) {
+            state = pullTaskState(remoteCache, key);
+        }
+        return state;
+    }
+
+    @Override
+    public void saveTaskState(Task task, MetadataStore.TaskState state) {
+        var key = key(task);
+        metadataStore.putTaskState(key.storeKey(), state);
+        if (remoteCache != null && !remoteCache.readOnly() && !remoteCacheFailed) {
+            var remoteCache = this.remoteCache;
+            // Uploads need not hold up dependent tasks; closing the invocation waits for them
+            executor.submit(() -> pushTaskState(remoteCache, key, state));
+        }
+    }
+
+    private MetadataStore.@Nullable TaskState lowerLayerTaskState(TaskKey key) {
+        for (var layer : lowerCacheLayers) {
+            var state = layer.metadataStore().taskState(key.storeKey());
+            if (state == null) {
+                continue;
+            }
+            try {
+                var sources = new HashMap<Path, Path>();
+                for (var output : state.outputs().values()) {
+                    var prefix = output.objectHash().substring(0, 2);
+                    sources.put(layer.contentAddressableDirectory().resolve(prefix).resolve(output.objectHash() + "." + output.type()), pathFromHash(output.objectHash(), output.type()));
+                }
+                if (!sources.keySet().stream().allMatch(Files::isRegularFile)) {
+                    continue;
+                }
+                for (var entry : sources.entrySet()) {
+                    if (!Files.exists(entry.getValue())) {
+                        // Lower layers may be shared, so their objects are linked only if they are read-only already
+                        FileUtils.materializeExternal(entry.getKey(), entry.getValue());
+                        FileUtils.makeReadOnly(entry.getValue());
+                    }
+                }
+                state = state.withLastAccessed(System.currentTimeMillis());
+                metadataStore.putTaskState(key.storeKey(), state);
+                LOGGER.debug("Using state {} from cache layer {}", key.storeKey(), layer.directory());
+                return state;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to use state {} from cache layer {}", key.storeKey(), layer.directory(), e);
+            }
+        }
+        return null;
+    }
+
+    private static String objectName(MetadataStore.OutputState output) {
+        return output.objectHash().substring(0, 2) + "/" + output.objectHash() + "." + output.type();
+    }
+
+    private MetadataStore.@Nullable TaskState pullTaskState(RemoteCache remoteCache, TaskKey key) {
+        try {
+            var bytes = remoteCache.loadState(key.storeKey());
+            if (bytes == null) {
+                return null;
+            }
+            MetadataStore.TaskState state;
+            try {
+                state = MetadataStore.decode(bytes);
+            } catch (IOException e) {
+                // A single damaged state is no reason to stop using the remote cache
+                LOGGER.warn("Ignoring invalid state {} from remote cache: {}", key.storeKey(), e.getMessage());
+                return null;
+            }
+            for (var entry : state.outputs().entrySet()) {
+                if (!entry.getValue().type().equals(key.outputType(entry.getKey()))) {
+                    LOGGER.warn("Ignoring state {} from remote cache, as its output {} does not match the task", key.storeKey(), entry.getKey());
+                    return null;
+                }
+            }
+            var futures = new ArrayList<Future<Boolean>>();
+            try (var transfers = Executors.newThreadPerTaskExecutor(THREAD_FACTORY)) {
+                for (var output : state.outputs().values()) {
+                    if (output.size() > remoteCache.maxObjectSize()) {
+                        return null;
+                    }
+                    futures.add(transfers.submit(() -> pullObject(remoteCache, output)));
+                }
+                for (var future : futures) {
+                    if (!future.get()) {
+                        return null;
+                    }
+                }
+            }
+            state = state.withLastAccessed(System.currentTimeMillis());
+            metadataStore.putTaskState(key.storeKey(), state);
+            LOGGER.debug("Retrieved state {} from remote cache", key.storeKey());
+            return state;
+        } catch (IOException | ExecutionException e) {
+            remoteCacheFailed("retrieve state " + key.storeKey() + " from", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private boolean pullObject(RemoteCache remoteCache, MetadataStore.OutputState output) throws IOException {
+        var path = pathFromHash(output.objectHash(), output.type());
+        if (Files.exists(path)) {
+            // Objects are only ever written under their own hash, so a present object need only be the expected size
+            return output.size() < 0 || Files.size(path) == output.size();
+        }
+        Files.createDirectories(path.getParent());
+        var partial = path.resolveSibling(path.getFileName() + "." + Math.random() + ".partial");
+        try {
+            if (!remoteCache.loadObject(objectName(output), partial)) {
+                return false;
+            }
+            var hash = HashUtils.hash(partial, "SHA-256");
+            if (!hash.equals(output.objectHash())) {
+                throw new IOException("Object " + objectName(output) + " from remote cache has hash " + hash);
+            }
+            if (output.size() >= 0 && Files.size(partial) != output.size()) {
+                throw new IOException("Object " + objectName(output) + " from remote cache does not have its recorded size");
+            }
+            try {
+                Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ignored) {
+                // Inserted concurrently by another process
+            }
+            FileUtils.makeReadOnly(path);
+            return true;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    private void pushTaskState(RemoteCache remoteCache, TaskKey key, MetadataStore.TaskState state) {
+        try {
+            for (var output : state.outputs().values()) {
+                if (Files.size(pathFromHash(output.objectHash(), output.type())) > remoteCache.maxObjectSize()) {
+                    LOGGER.debug("Not storing state {} in remote cache, as output {} is too large", key.storeKey(), objectName(output));
+                    return;
+                }
+            }
+            var futures = new ArrayList<Future<?>>();
+            try (var transfers = Executors.newThreadPerTaskExecutor(THREAD_FACTORY)) {
+                for (var output : state.outputs().values()) {
+                    futures.add(transfers.submit(() -> {
+                        remoteCache.storeObject(objectName(output), pathFromHash(output.objectHash(), output.type()));
+                        return null;
+                    }));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            }
+            // Objects go first, so a state is never visible in the remote cache without them
+            remoteCache.storeState(key.storeKey(), MetadataStore.encode(state));
+        } catch (IOException | ExecutionException e) {
+            remoteCacheFailed("store state " + key.storeKey() + " in", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void remoteCacheFailed(String action, Exception e) {
+        if (!remoteCacheFailed) {
+            remoteCacheFailed = true;
+            LOGGER.warn("Failed to {} remote cache; it will not be used for the rest of this invocation", action, e);
+        }
+    }
+
+    /**
+     * {@return the stored state of every task executed by this invocation, by its key in the metadata store}
+     */
+    public Map<String, MetadataStore.TaskState> executedTaskStates() {
+        Map<String, MetadataStore.TaskState> states = new LinkedHashMap<>();
+        for (var task : tasks.values()) {
+            if (task.isExecuted()) {
+                var key = key(task).storeKey();
+                var state = metadataStore.taskState(key);
+                if (state != null) {
+                    states.put(key, state);
+                }
+            }
+        }
+        return states;
+    }
+
+    @Override
+    public void markTaskAccessed(Task task) {
+        metadataStore.markAccessed(key(task).storeKey(), System.currentTimeMillis());
     }
 
     @Override
@@ -157,6 +360,20 @@ public Task getTask(String name) {
         return task;
     }
 
+    @Override
+    public TaskInput.FileListSnapshot fileListSnapshot(TaskInput.FileListInput input) {
+        var snapshot = fileListSnapshots.get(input);
+        if (snapshot == null) {
+            // Not computeIfAbsent, as resolving an input may take the snapshots of the inputs it is made of
+            snapshot = new TaskInput.FileListSnapshot(input.resolvePaths(this));
+            var existing = fileListSnapshots.putIfAbsent(input, snapshot);
+            if (existing != null) {
+                snapshot = existing;
+            }
+        }
+        return snapshot;
+    }
+
     @Override
     public Path findArtifact(String notation) {
         return artifactManifest.findArtifact(notation);
@@ -40,7 +40,8 @@ public void update(byte b) {
 
                 @Override
                 public void update(ByteBuffer buffer) {
-                    digest.update(buffer);
+                    // Consistent with the stream consumer, so that digesting directly matches digesting buffered bytes
+                    digest.update(buffer.array(), buffer.arrayOffset(), buffer.limit());
                 }
 
                 @Override
@@ -0,0 +1,37 @@
+package dev.lukebemish.taskgraphrunner.runtime;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A cache of task states and outputs shared between machines. States are stored under the same keys as in the local
+ * metadata store, and objects under their path relative to the local object store, {@code <prefix>/<sha256>.<type>}.
+ */
+public interface RemoteCache {
+    /**
+     * {@return the state stored under the given key, encoded as by {@link dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore#encode}, or {@code null} if there is none}
+     */
+    byte @Nullable [] loadState(String key) throws IOException;
+
+    void storeState(String key, byte[] state) throws IOException;
+
+    /**
+     * Downloads an object to the given path.
+     * @return whether the object was present and no larger than {@link #maxObjectSize()}
+     */
+    boolean loadObject(String name, Path target) throws IOException;
+
+    /**
+     * Uploads an object, unless the cache already has it.
+     */
+    void storeObject(String name, Path source) throws IOException;
+
+    /**
+     * {@return whether states and objects should only be retrieved from this cache, and never stored}
+     */
+    boolean readOnly();
+
+    long maxObjectSize();
+}
@@ -4,7 +4,6 @@
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonPrimitive;
 import dev.lukebemish.taskgraphrunner.model.TaskModel;
 import dev.lukebemish.taskgraphrunner.model.WorkItem;
 import dev.lukebemish.taskgraphrunner.runtime.tasks.CompileTask;
@@ -23,21 +22,27 @@
 import dev.lukebemish.taskgraphrunner.runtime.tasks.SplitClassesResourcesTask;
 import dev.lukebemish.taskgraphrunner.runtime.tasks.ToolTask;
 import dev.lukebemish.taskgraphrunner.runtime.tasks.TransformMappingsTask;
+import dev.lukebemish.taskgraphrunner.runtime.util.FileUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.HashUtils;
 import dev.lukebemish.taskgraphrunner.runtime.util.LockManager;
+import dev.lukebemish.taskgraphrunner.runtime.util.MetadataStore;
 import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -51,18 +56,26 @@
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public abstract class Task implements RecordedInput {
     private static final Logger LOGGER = LoggerFactory.getLogger(Task.class);
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final String EXPLAIN_PROPERTY = "dev.lukebemish.taskgraphrunner.explain";
+    private static final boolean EXPLAIN = Boolean.getBoolean(EXPLAIN_PROPERTY);
+    private static final String DISABLE_PREFETCH_PROPERTY = "dev.lukebemish.taskgraphrunner.disable-prefetch";
+    private static final boolean PREFETCH = !Boolean.getBoolean(DISABLE_PREFETCH_PROPERTY);
 
     private final String name;
     private final String type;
     private final @Nullable String parallelism;
     private int outputId = 0;
+    private long executionTime = 0;
 
     public Task(TaskModel model) {
         this.name = model.name();
@@ -82,11 +95,13 @@ public String name() {
 
     public abstract Map<String, String> outputTypes();
 
-    private volatile byte[] referenceHash;
-    private volatile byte[] contentsHash;
+    private volatile byte @Nullable [] referenceHash;
+    private volatile byte @Nullable [] contentsHash;
+    private volatile @Nullable TaskKey key;
 
     private final AtomicBoolean executed = new AtomicBoolean(false);
     private final AtomicBoolean submitted = new AtomicBoolean(false);
+    private final Set<String> prefetchedInputs = ConcurrentHashMap.newKeySet();
 
     private final AtomicInteger remainingDependencies = new AtomicInteger(0);
 
@@ -164,14 +179,14 @@ private static void executeNode(Context context, GraphNode node) {
                 LOGGER.debug("Executing task {} which is a dependency of {}", node.task.name(), node.dependentMap.keySet());
                 try (var ignored = node.task.lock(context)) {
                     node.task.execute(context);
-                    for (var entry : node.outputs.entrySet()) {
+                    context.execute(node.outputs.entrySet(), entry -> {
                         var outputPath = Objects.requireNonNull(context.existingTaskOutput(node.task, entry.getKey()), "Output did not exist");
                         try {
-                            Files.copy(outputPath, entry.getValue(), StandardCopyOption.REPLACE_EXISTING);
+                            FileUtils.materialize(outputPath, entry.getValue());
                         } catch (IOException e) {
                             throw new UncheckedIOException(e);
                         }
-                    }
+                    });
                 }
                 for (var dependent : node.dependents) {
                     var remaining = dependent.task.remainingDependencies.decrementAndGet();
@@ -179,6 +194,8 @@ private static void executeNode(Context context, GraphNode node) {
                         if (!dependent.task.submitted.getAndSet(true)) {
                             executeNode(context, dependent);
                         }
+                    } else {
+                        dependent.task.prefetchReadyInputs(context);
                     }
                 }
                 node.task.taskFuture.complete(null);
@@ -209,6 +226,9 @@ static void executeTasks(Context context, Map<String, Map<String, Path>> actions
                 executeNode(context, node);
             }
         }
+        for (var node : originalNodes) {
+            node.task.prefetchReadyInputs(context);
+        }
         List<Throwable> suppressed = new ArrayList<>();
         for (var node : originalNodes) {
             try {
@@ -246,6 +266,40 @@ static void executeTasks(Context context, Map<String, Map<String, Path>> actions
         }
     }
 
+    /**
+     * Starts resolving and hashing, in the background, those inputs of a task that is still waiting on other
+     * dependencies, once everything the input itself depends on has executed. Downloads of artifacts and libraries, and
+     * hashing of the files they resolve to, then overlap with upstream tasks instead of delaying this one once it is
+     * ready; the results are picked up from the file list snapshots and hash cache when the task runs. Failures are
+     * left for the task to report.
+     */
+    private void prefetchReadyInputs(Context context) {
+        if (!PREFETCH || submitted.get()) {
+            return;
+        }
+        for (var input : inputs()) {
+            if (prefetchedInputs.contains(input.name())) {
+                continue;
+            }
+            boolean ready = true;
+            for (var dependency : input.dependencies()) {
+                if (!context.getTask(dependency).isExecuted()) {
+                    ready = false;
+                    break;
+                }
+            }
+            if (ready && prefetchedInputs.add(input.name())) {
+                context.submit(() -> {
+                    try {
+                        input.hashContents(ByteConsumer.of(OutputStream.nullOutputStream()), context);
+                    } catch (RuntimeException e) {
+                        LOGGER.debug("Prefetching input `{}` of task `{}` failed", input.name(), name, e);
+                    }
+                });
+            }
+        }
+    }
+
     boolean isExecuted() {
         return executed.get();
     }
@@ -275,25 +329,18 @@ private void execute(Context context) {
                 throw new UncheckedIOException(e);
             }
             Map<String, String> currentHashes = new HashMap<>();
-            if (context.useCached() && Files.exists(statePath)) {
-                try (var reader = Files.newBufferedReader(statePath, StandardCharsets.UTF_8)) {
-                    JsonObject existingState = GSON.fromJson(reader, JsonObject.class);
-                    JsonElement existingInputState = existingState.get("inputs");
-                    var targetHashes = existingState.get("hashes").getAsJsonObject();
-                    var lastExecutedJson = existingState.get("lastExecuted");
-                    this.outputId = existingState.get("outputId").getAsInt();
-                    long lastExecuted = 0;
-                    if (lastExecutedJson != null) {
-                        lastExecuted = lastExecutedJson.getAsLong();
-                    }
+            var inputsDigest = recordedInputsDigest(context);
+            var existingState = context.useCached() ? context.taskState(this) : null;
+            if (existingState != null) {
+                try {
+                    this.outputId = existingState.outputId();
                     boolean allOutputsMatch = true;
                     for (var output : outputTypes().keySet()) {
-                        var oldHashElement = targetHashes.get(output);
-                        if (oldHashElement == null || !oldHashElement.isJsonPrimitive() || !oldHashElement.getAsJsonPrimitive().isString()) {
+                        var oldOutput = existingState.outputs().get(output);
+                        if (oldOutput == null) {
                             allOutputsMatch = false;
                             break;
                         }
-                        var oldHash = oldHashElement.getAsString();
                         var outputPath = context.existingTaskOutput(this, output);
                         if (outputPath == null || !Files.exists(outputPath)) {
                             allOutputsMatch = false;
@@ -301,17 +348,21 @@ private void execute(Context context) {
                         }
                         var hash = HashUtils.hash(outputPath);
                         currentHashes.put(output, hash);
-                        if (!hash.equals(oldHash)) {
+                        if (!hash.equals(oldOutput.contentHash())) {
                             allOutputsMatch = false;
                             break;
                         }
                     }
-                    if (allOutputsMatch && upToDate(lastExecuted, context)) {
-                        JsonElement newInputState = recordedValue(context);
-                        if (newInputState.equals(existingInputState)) {
+                    if (allOutputsMatch && upToDate(existingState.lastExecuted(), context)) {
+                        if (MessageDigest.isEqual(inputsDigest, existingState.inputsDigest())) {
+                            context.markTaskAccessed(this);
                             LOGGER.debug("Task `" + name + "` is up-to-date.");
                             return;
+                        } else if (EXPLAIN) {
+                            LOGGER.info("Task `{}` is out of date: recorded inputs changed since {}", name, Instant.ofEpochMilli(existingState.lastExecuted()));
                         }
+                    } else if (EXPLAIN) {
+                        LOGGER.info("Task `{}` is out of date: outputs changed or task reported itself stale", name);
                     }
                 } catch (Exception e) {
                     // something went wrong -- let's log it, then keep going:
@@ -321,12 +372,13 @@ private void execute(Context context) {
             outputId++;
             // Something was not up-to-date -- so we run everything
             LOGGER.info("Starting task `{}`.", name);
+            Map<String, MetadataStore.OutputState> outputs = new HashMap<>();
             try {
                 try (var ignored = LockManager.heavyLightLock(parallelism)) {
                     if (parallelism == null) {
-                        run(context);
+                        timedRun(context);
                     } else {
-                        context.lockManager().enforcedParallelism(context, parallelism, () -> run(context));
+                        context.lockManager().enforcedParallelism(context, parallelism, () -> timedRun(context));
                     }
                 }
                 boolean nothingChanged = true;
@@ -345,17 +397,31 @@ private void execute(Context context) {
                 }
                 if (nothingChanged) {
                     outputId--;
+                    if (existingState != null) {
+                        outputs.putAll(existingState.outputs());
+                    }
                 } else {
-                    for (var output : outputTypes().keySet()) {
-                        var outputPath = context.taskOutputPath(this, output);
+                    for (var output : outputTypes().entrySet()) {
+                        var outputPath = context.taskOutputPath(this, output.getKey());
+                        var contentHash = HashUtils.hash(outputPath);
                         var hash = HashUtils.hash(outputPath, "SHA-256");
-                        var outPath = context.pathFromHash(hash, outputTypes().get(output));
-                        var markerPath = context.taskOutputMarkerPath(this, output);
+                        var outPath = context.pathFromHash(hash, output.getValue());
                         Files.createDirectories(outPath.getParent());
-                        Files.createDirectories(markerPath.getParent());
-                        // This is atomic because locking here is less sensible
-                        Files.move(outputPath, outPath, StandardCopyOption.ATOMIC_MOVE);
-                        Files.writeString(markerPath, hash, StandardCharsets.UTF_8);
+                        // An identical object may already be present, from another task or an earlier run; the
+                        // leftover output is removed below either way
+                        if (!Files.exists(outPath)) {
+                            try {
+                                // This is atomic because locking here is less sensible
+                                Files.move(outputPath, outPath, StandardCopyOption.ATOMIC_MOVE);
+                            } catch (FileAlreadyExistsException ignored) {
+                                // Inserted concurrently by another process
+                            }
+                            FileUtils.makeReadOnly(outPath);
+                        } else {
+                            // Keeps garbage collection from removing an object that is about to be referenced again
+                            Files.setLastModifiedTime(outPath, FileTime.from(Instant.now()));
+                        }
+                        outputs.put(output.getKey(), new MetadataStore.OutputState(output.getValue(), hash, contentHash, Files.size(outPath)));
                     }
                 }
             } finally {
@@ -366,7 +432,7 @@ private void execute(Context context) {
                     }
                 }
             }
-            saveState(context);
+            saveState(context, inputsDigest, outputs);
             LOGGER.info("Finished task `" + name + "`.");
             executed.set(true);
         } catch (Exception e) {
@@ -376,67 +442,85 @@ private void execute(Context context) {
         }
     }
 
+    private void timedRun(Context context) {
+        var start = System.nanoTime();
+        run(context);
+        executionTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
     public final String type() {
         return type;
     }
 
-    private void saveState(Context context) {
-        var statePath = context.taskStatePath(this);
-        var inputState = recordedValue(context);
-        JsonObject outputHashes = new JsonObject();
+    private void saveState(Context context, byte[] inputsDigest, Map<String, MetadataStore.OutputState> outputs) {
         for (var output : outputTypes().keySet()) {
-            var outputPath = Objects.requireNonNull(context.existingTaskOutput(this, output), "Output did not exist");
-            if (Files.exists(outputPath)) {
-                try {
-                    var hash = HashUtils.hash(outputPath);
-                    outputHashes.addProperty(output, hash);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            } else {
-                throw new RuntimeException("Output file for `"+output+"` at `"+outputPath+"` not found after task `"+name+"` completed");
+            var state = outputs.get(output);
+            if (state == null || !Files.exists(context.pathFromHash(state.objectHash(), state.type()))) {
+                throw new RuntimeException("Output file for `"+output+"` not found after task `"+name+"` completed");
             }
         }
-        JsonObject state = new JsonObject();
-        state.add("inputs", inputState);
-        state.add("hashes", outputHashes);
-        state.addProperty("outputId", outputId);
         var currentTime = System.currentTimeMillis();
-        state.add("lastExecuted", new JsonPrimitive(currentTime));
-        try (var writer = Files.newBufferedWriter(statePath, StandardCharsets.UTF_8)) {
-            GSON.toJson(state, writer);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        context.saveTaskState(this, new MetadataStore.TaskState(outputId, currentTime, currentTime, executionTime, inputsDigest, outputs));
+        if (EXPLAIN) {
+            var statePath = context.taskStatePath(this);
+            JsonObject state = new JsonObject();
+            state.add("inputs", recordedValue(context));
+            state.addProperty("outputId", outputId);
+            state.addProperty("lastExecuted", currentTime);
+            try (var writer = Files.newBufferedWriter(statePath, StandardCharsets.UTF_8)) {
+                GSON.toJson(state, writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
         }
     }
 
     @Override
     public void hashReference(ByteConsumer digest, Context context) {
-        if (referenceHash == null) {
+        digest.update(referenceDigest(context));
+    }
+
+    @Override
+    public void hashContents(ByteConsumer digest, Context context) {
+        digest.update(contentsDigest(context));
+    }
+
+    /**
+     * {@return the MD5 digest of this task's type, cache version, and input references}
+     */
+    byte[] referenceDigest(Context context) {
+        var hash = referenceHash;
+        if (hash == null) {
             synchronized (this) {
-                if (referenceHash == null) {
-                    var stream = new ByteArrayOutputStream();
-                    var consumer = ByteConsumer.of(stream);
+                hash = referenceHash;
+                if (hash == null) {
+                    var messageDigest = md5();
+                    var consumer = ByteConsumer.of(messageDigest);
                     consumer.update(type().getBytes(StandardCharsets.UTF_8));
                     consumer.update(((Integer) cacheVersion()).byteValue());
                     for (TaskInput input : inputs()) {
                         consumer.update(input.name().getBytes(StandardCharsets.UTF_8));
                         input.hashReference(consumer, context);
                     }
-                    referenceHash = stream.toByteArray();
+                    hash = messageDigest.digest();
+                    referenceHash = hash;
                 }
             }
         }
-        digest.update(referenceHash);
+        return hash;
     }
 
-    @Override
-    public void hashContents(ByteConsumer digest, Context context) {
-        if (contentsHash == null) {
+    /**
+     * {@return the MD5 digest of this task's type, cache version, and input contents}
+     */
+    byte[] contentsDigest(Context context) {
+        var hash = contentsHash;
+        if (hash == null) {
             synchronized (this) {
-                if (contentsHash == null) {
-                    var stream = new ByteArrayOutputStream();
-                    var consumer = ByteConsumer.of(stream);
+                hash = contentsHash;
+                if (hash == null) {
+                    var messageDigest = md5();
+                    var consumer = ByteConsumer.of(messageDigest);
                     consumer.update(type().getBytes(StandardCharsets.UTF_8));
                     consumer.update(((Integer) cacheVersion()).byteValue());
                     var sortedInputs = new ArrayList<>(inputs());
@@ -450,11 +534,64 @@ public void hashContents(ByteConsumer digest, Context context) {
                         consumer.update(input.name().getBytes(StandardCharsets.UTF_8));
                         input.hashContents(consumer, context);
                     }
-                    contentsHash = stream.toByteArray();
+                    hash = messageDigest.digest();
+                    contentsHash = hash;
                 }
             }
         }
-        digest.update(contentsHash);
+        return hash;
+    }
+
+    TaskKey key(Function<Task, TaskKey> factory) {
+        var key = this.key;
+        if (key == null) {
+            synchronized (this) {
+                key = this.key;
+                if (key == null) {
+                    key = factory.apply(this);
+                    this.key = key;
+                }
+            }
+        }
+        return key;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@return a SHA-256 digest of the task's class, cache version, input contents and output types, used by the
+     * up-to-date check} The input contents are covered by {@link #contentsDigest(Context)}, which is reused rather
+     * than hashing every input again.
+     */
+    private byte[] recordedInputsDigest(Context context) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        updateString(digest, getClass().getName());
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(cacheVersion()).flip());
+        digest.update(contentsDigest(context));
+        var sortedOutputs = new ArrayList<>(outputTypes().entrySet());
+        sortedOutputs.sort(Map.Entry.comparingByKey());
+        for (var output : sortedOutputs) {
+            updateString(digest, output.getKey());
+            updateString(digest, output.getValue());
+        }
+        return digest.digest();
+    }
+
+    private static void updateString(MessageDigest digest, String string) {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).flip());
+        digest.update(bytes);
     }
 
     @Override
@@ -3,6 +3,7 @@
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import dev.lukebemish.taskgraphrunner.model.ContentNormalization;
 import dev.lukebemish.taskgraphrunner.model.Input;
 import dev.lukebemish.taskgraphrunner.model.InputValue;
 import dev.lukebemish.taskgraphrunner.model.ListOrdering;
@@ -24,6 +25,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.stream.Collectors;
 
 public sealed interface TaskInput extends RecordedInput {
@@ -38,10 +40,61 @@ sealed interface HasFileInput extends TaskInput {
     }
 
     sealed interface FileListInput extends TaskInput {
-        List<Path> paths(Context context);
+        /**
+         * Resolves the paths of this input from scratch. Consumers should use {@link #paths(Context)}, which reads the
+         * snapshot taken the first time the input is used within an invocation.
+         */
+        List<Path> resolvePaths(Context context);
+
+        default List<Path> paths(Context context) {
+            return snapshot(context).paths();
+        }
+
+        default FileListSnapshot snapshot(Context context) {
+            return context.fileListSnapshot(this);
+        }
 
         default String classpath(Context context) {
-            return paths(context).stream().map(p -> p.toAbsolutePath().toString()).collect(Collectors.joining(File.pathSeparator));
+            return snapshot(context).classpath();
+        }
+    }
+
+    /**
+     * The resolved paths of a {@link FileListInput}. The classpath string and the MD5 digest of each path are computed
+     * at most once.
+     */
+    final class FileListSnapshot {
+        private final List<Path> paths;
+        private final AtomicReferenceArray<byte[]> digests;
+        private volatile @Nullable String classpath;
+
+        FileListSnapshot(List<Path> paths) {
+            this.paths = List.copyOf(paths);
+            this.digests = new AtomicReferenceArray<>(this.paths.size());
+        }
+
+        public List<Path> paths() {
+            return paths;
+        }
+
+        public byte[] digest(int index) {
+            var digest = digests.get(index);
+            if (digest == null) {
+                var output = new ByteArrayOutputStream();
+                HashUtils.hash(paths.get(index), ByteConsumer.of(output));
+                digest = output.toByteArray();
+                digests.set(index, digest);
+            }
+            return digest;
+        }
+
+        public String classpath() {
+            var classpath = this.classpath;
+            if (classpath == null) {
+                classpath = paths.stream().map(p -> p.toAbsolutePath().toString()).collect(Collectors.joining(File.pathSeparator));
+                this.classpath = classpath;
+            }
+            return classpath;
         }
     }
 
@@ -176,9 +229,9 @@ public List<String> dependencies() {
         }
 
         @Override
-        public List<Path> paths(Context context) {
+        public List<Path> resolvePaths(Context context) {
             try (var reader = Files.newBufferedReader(libraryFile.path(context))) {
-                return reader.lines().map(line -> pathNotation(context, line)).toList();
+                return context.artifactManifest().resolveAll(reader.lines().toList());
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -191,9 +244,9 @@ public void hashReference(ByteConsumer digest, Context context) {
 
         @Override
         public void hashContents(ByteConsumer digest, Context context) {
-            var paths = paths(context);
-            for (Path path : paths) {
-                HashUtils.hash(path, digest);
+            var snapshot = snapshot(context);
+            for (int i = 0; i < snapshot.paths().size(); i++) {
+                digest.update(snapshot.digest(i));
             }
         }
 
@@ -213,7 +266,7 @@ private static Path pathNotation(Context context, String line) {
     record RecursiveFileListInput(String name, List<FileListInput> inputs) implements FileListInput {
 
         @Override
-        public List<Path> paths(Context context) {
+        public List<Path> resolvePaths(Context context) {
             return inputs.stream().flatMap(i -> i.paths(context).stream()).toList();
         }
 
@@ -299,18 +352,22 @@ public JsonElement recordedValue(Context context) {
         }
 
         @Override
-        public List<Path> paths(Context context) {
-            var stream = inputs.stream().map(input -> input.path(context));
+        public List<Path> resolvePaths(Context context) {
+            var paths = inputs.stream().map(input -> input.path(context)).toList();
             if (listOrdering == ListOrdering.CONTENTS) {
-                stream = stream.sorted((a, b) -> {
-                    var aOutput = new ByteArrayOutputStream();
-                    HashUtils.hash(a, ByteConsumer.of(aOutput));
-                    var bOutput = new ByteArrayOutputStream();
-                    HashUtils.hash(b, ByteConsumer.of(bOutput));
-                    return Arrays.compare(aOutput.toByteArray(), bOutput.toByteArray());
-                });
+                // Hash each path once up front rather than twice per comparison
+                record Hashed(Path path, byte[] hash) {}
+                return paths.stream()
+                    .map(path -> {
+                        var output = new ByteArrayOutputStream();
+                        HashUtils.hash(path, ByteConsumer.of(output));
+                        return new Hashed(path, output.toByteArray());
+                    })
+                    .sorted((a, b) -> Arrays.compare(a.hash(), b.hash()))
+                    .map(Hashed::path)
+                    .toList();
             }
-            return stream.toList();
+            return paths;
         }
 
         @Override
@@ -319,6 +376,92 @@ public List<String> dependencies() {
         }
     }
 
+    record NormalizedFileInput(String name, HasFileInput input, ContentNormalization normalization) implements HasFileInput {
+        @Override
+        public Path path(Context context) {
+            return input.path(context);
+        }
+
+        @Override
+        public void hashReference(ByteConsumer digest, Context context) {
+            input.hashReference(digest, context);
+            digest.update(normalization.name().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void hashContents(ByteConsumer digest, Context context) {
+            hashReference(digest, context);
+            HashUtils.hash(path(context), digest, normalization);
+        }
+
+        @Override
+        public List<String> dependencies() {
+            return input.dependencies();
+        }
+
+        @Override
+        public JsonElement recordedValue(Context context) {
+            JsonObject object = new JsonObject();
+            object.addProperty("type", "normalized");
+            object.addProperty("normalization", normalization.name());
+            object.add("file", input.recordedValue(context));
+            return object;
+        }
+    }
+
+    record NormalizedFileListInput(String name, FileListInput input, ContentNormalization normalization) implements FileListInput {
+        @Override
+        public List<Path> resolvePaths(Context context) {
+            return input.paths(context);
+        }
+
+        @Override
+        public void hashReference(ByteConsumer digest, Context context) {
+            input.hashReference(digest, context);
+            digest.update(normalization.name().getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void hashContents(ByteConsumer digest, Context context) {
+            hashReference(digest, context);
+            var paths = input.paths(context);
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+            buffer.putInt(paths.size());
+            digest.update(buffer);
+            if (input instanceof SimpleFileListInput simple && simple.listOrdering() == ListOrdering.CONTENTS) {
+                // The paths are ordered by their raw contents; files that normalize the same must hash the same in any order
+                ArrayList<byte[]> hashes = new ArrayList<>(paths.size());
+                for (Path path : paths) {
+                    var output = new ByteArrayOutputStream();
+                    HashUtils.hash(path, ByteConsumer.of(output), normalization);
+                    hashes.add(output.toByteArray());
+                }
+                hashes.sort(Arrays::compare);
+                for (byte[] hash : hashes) {
+                    digest.update(hash);
+                }
+            } else {
+                for (Path path : paths) {
+                    HashUtils.hash(path, digest, normalization);
+                }
+            }
+        }
+
+        @Override
+        public List<String> dependencies() {
+            return input.dependencies();
+        }
+
+        @Override
+        public JsonElement recordedValue(Context context) {
+            JsonObject object = new JsonObject();
+            object.addProperty("type", "normalized");
+            object.addProperty("normalization", normalization.name());
+            object.add("files", input.recordedValue(context));
+            return object;
+        }
+    }
+
     static ValueInput value(String name, InputValue modelInput, WorkItem workItem) {
         return value(name, modelInput, workItem, null);
     }
@@ -350,6 +493,14 @@ static ValueInput value(String name, InputValue modelInput, WorkItem workItem, V
         };
     }
 
+    static HasFileInput file(String name, Input modelInput, WorkItem workItem, Context context, PathSensitivity pathSensitivity, @Nullable ContentNormalization normalization) {
+        var file = file(name, modelInput, workItem, context, pathSensitivity);
+        if (normalization == null || normalization == ContentNormalization.NONE) {
+            return file;
+        }
+        return new NormalizedFileInput(name, file, normalization);
+    }
+
     static HasFileInput file(String name, Input modelInput, WorkItem workItem, Context context, PathSensitivity pathSensitivity) {
         return switch (modelInput) {
             case Input.ParameterInput parameterInput -> {
@@ -376,6 +527,14 @@ static HasFileInput file(String name, Input modelInput, WorkItem workItem, Conte
         };
     }
 
+    static FileListInput files(String name, Input modelInput, WorkItem workItem, Context context, PathSensitivity pathSensitivity, @Nullable ContentNormalization normalization) {
+        var files = files(name, modelInput, workItem, context, pathSensitivity);
+        if (normalization == null || normalization == ContentNormalization.NONE) {
+            return files;
+        }
+        return new NormalizedFileListInput(name, files, normalization);
+    }
+
     static FileListInput files(String name, Input modelInput, WorkItem workItem, Context context, PathSensitivity pathSensitivity) {
         return switch (modelInput) {
             case Input.ParameterInput parameterInput -> {
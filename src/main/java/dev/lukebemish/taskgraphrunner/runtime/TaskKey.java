@@ -0,0 +1,70 @@
+package dev.lukebemish.taskgraphrunner.runtime;
+
+import org.jspecify.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The hashes and resolved cache locations of a task, computed once its dependencies have completed. Temporary output
+ * paths depend on the task's output id, so they are resolved per output id and kept until it changes.
+ */
+final class TaskKey {
+    private final String contentsHash;
+    private final Path directory;
+    private final Path statePath;
+    private final Path workingDirectory;
+    private final String storeKey;
+    private final Map<String, String> outputTypes;
+
+    private volatile @Nullable OutputPaths outputPaths;
+
+    private record OutputPaths(int outputId, Map<String, Path> outputs) {}
+
+    TaskKey(String type, String referenceHash, String contentsHash, Path resultsDirectory, Map<String, String> outputTypes) {
+        this.contentsHash = contentsHash;
+        this.directory = resultsDirectory.resolve(type + "." + referenceHash);
+        this.statePath = directory.resolve(contentsHash + ".json");
+        this.workingDirectory = directory.resolve(contentsHash);
+        this.storeKey = directory.getFileName() + "/" + contentsHash;
+        this.outputTypes = Map.copyOf(outputTypes);
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    Path statePath() {
+        return statePath;
+    }
+
+    Path workingDirectory() {
+        return workingDirectory;
+    }
+
+    String storeKey() {
+        return storeKey;
+    }
+
+    @Nullable String outputType(String outputName) {
+        return outputTypes.get(outputName);
+    }
+
+    @Nullable Path outputPath(String outputName, int outputId) {
+        return outputPaths(outputId).outputs().get(outputName);
+    }
+
+    private OutputPaths outputPaths(int outputId) {
+        var paths = this.outputPaths;
+        if (paths == null || paths.outputId() != outputId) {
+            Map<String, Path> outputs = new HashMap<>();
+            for (var entry : outputTypes.entrySet()) {
+                outputs.put(entry.getKey(), directory.resolve(contentsHash + "." + entry.getKey() + "." + outputId + "." + entry.getValue()));
+            }
+            paths = new OutputPaths(outputId, Map.copyOf(outputs));
+            this.outputPaths = paths;
+        }
+        return paths;
+    }
+}
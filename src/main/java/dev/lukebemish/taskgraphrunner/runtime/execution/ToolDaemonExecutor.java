@@ -231,6 +231,8 @@ private static Path transform(Path jar, Context context) throws IOException {
             Files.createDirectories(outJarPath.getParent());
             if (Files.exists(outJarMarker)) {
                 FileUtils.setLastAccessedTime(outJarMarker, now);
+                // The marker is never written to, so its modification time records the last use for eviction
+                Files.setLastModifiedTime(outJarMarker, now);
                 if (Files.exists(outJarMarker)) {
                     return outJarPath;
                 }
@@ -1,6 +1,11 @@
 package dev.lukebemish.taskgraphrunner.runtime.manifest.version;
 
+import org.jspecify.annotations.Nullable;
+
 import java.util.List;
 
-public record Library(String name, List<Rule> rules) {
+public record Library(String name, List<Rule> rules, Library.@Nullable Downloads downloads) {
+    public record Downloads(Library.@Nullable Artifact artifact) {}
+
+    public record Artifact(@Nullable String path, @Nullable String sha1, @Nullable Long size, @Nullable String url) {}
 }
@@ -32,18 +32,18 @@ static void processArgs(String prefix, List<Argument> sourceArgs, List<Arg> args
                     List<TaskInput.FileListInput> inputs = new ArrayList<>();
                     for (int j = 0; j < classpath.input.size(); j++) {
                         var input = classpath.input.get(j);
-                        inputs.add(TaskInput.files(name+"classpath"+j, input, workItem, context, PathSensitivity.NONE));
+                        inputs.add(TaskInput.files(name+"classpath"+j, input, workItem, context, PathSensitivity.NONE, classpath.normalization));
                     }
                     yield new Arg.Classpath(name, pattern, inputs);
                 }
-                case Argument.FileInput fileInput -> new Arg.InputFile(name, pattern, TaskInput.file(name+"file", fileInput.input, workItem, context, fileInput.pathSensitivity));
+                case Argument.FileInput fileInput -> new Arg.InputFile(name, pattern, TaskInput.file(name+"file", fileInput.input, workItem, context, fileInput.pathSensitivity, fileInput.normalization));
                 case Argument.ValueInput valueInput -> new Arg.Value(name, pattern, TaskInput.value(name+"value", valueInput.input, workItem));
                 case Argument.Untracked untracked -> new Arg.Untracked(name, pattern, TaskInput.value(name+"untracked", untracked.value, workItem));
                 case Argument.Zip zip -> {
                     var inputs = new ArrayList<TaskInput.FileListInput>();
                     for (int j = 0; j < zip.inputs.size(); j++) {
                         var input = zip.inputs.get(j);
-                        inputs.add(TaskInput.files(name+"zip"+j, input, workItem, context, zip.pathSensitivity));
+                        inputs.add(TaskInput.files(name+"zip"+j, input, workItem, context, zip.pathSensitivity, zip.normalization));
                     }
                     yield new Arg.Zip(name, pattern, inputs);
                 }
@@ -45,7 +45,7 @@ public InterfaceInjectionTask(TaskModel.InterfaceInjection model, WorkItem workI
         List<TaskInput.FileListInput> classpathParts = new ArrayList<>();
         for (int i = 0; i < model.classpath.size(); i++) {
             var part = model.classpath.get(i);
-            classpathParts.add(TaskInput.files("classpath" + i, part, workItem, context, PathSensitivity.NONE));
+            classpathParts.add(TaskInput.files("classpath" + i, part, workItem, context, PathSensitivity.NONE, model.classpathNormalization));
         }
         this.classpath = new TaskInput.RecursiveFileListInput("classpath", classpathParts);
     }
@@ -11,6 +11,8 @@
 import dev.lukebemish.taskgraphrunner.runtime.manifest.version.Library;
 import dev.lukebemish.taskgraphrunner.runtime.manifest.version.Rule;
 import dev.lukebemish.taskgraphrunner.runtime.util.JsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
@@ -19,7 +21,16 @@
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Lists the libraries of a version JSON, followed by any additional libraries, one library notation per line. Libraries
+ * whose download URL, SHA-1 and size are given in the version JSON are written as
+ * {@code artifact:<name> sha1=<checksum> size=<bytes> url=<url>}, so that they are downloaded from there and verified;
+ * readers of the list other than {@link dev.lukebemish.taskgraphrunner.runtime.ArtifactManifest#resolveAll} should
+ * ignore everything after the first space.
+ */
 public class ListClasspathTask extends Task {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListClasspathTask.class);
+
     private final TaskInput.HasFileInput versionJson;
     private final TaskInput.ValueInput additionalLibraries;
 
@@ -74,7 +85,7 @@ protected void run(Context context) {
                     if (!allowed) {
                         continue;
                     }
-                    artifacts.add("artifact:"+library.name());
+                    artifacts.add(libraryNotation(library));
                 }
             }
             if (!(additionalLibraries.value() instanceof Value.ListValue additionalLibrariesList)) {
@@ -87,8 +98,26 @@ protected void run(Context context) {
                 artifacts.add(stringValue.value());
             }
             Files.writeString(output, String.join(System.lineSeparator(), artifacts)+System.lineSeparator());
+            // Fetched now, in parallel and verified against their checksums, rather than when a task first needs them;
+            // only consumers of the list need the artifacts, so they report any failure
+            context.submit(() -> {
+                try {
+                    context.artifactManifest().resolveAll(artifacts);
+                } catch (RuntimeException e) {
+                    LOGGER.debug("Prefetching libraries listed by task `{}` failed", name(), e);
+                }
+            });
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+
+    private static String libraryNotation(Library library) {
+        var notation = "artifact:"+library.name();
+        var artifact = library.downloads() == null ? null : library.downloads().artifact();
+        if (artifact == null || artifact.sha1() == null || artifact.size() == null || artifact.url() == null || artifact.url().isEmpty()) {
+            return notation;
+        }
+        return notation+" sha1="+artifact.sha1()+" size="+artifact.size()+" url="+artifact.url();
+    }
 }
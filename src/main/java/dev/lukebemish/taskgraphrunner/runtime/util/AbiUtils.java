@@ -0,0 +1,230 @@
+package dev.lukebemish.taskgraphrunner.runtime.util;
+
+import org.jspecify.annotations.Nullable;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+public final class AbiUtils {
+    private AbiUtils() {}
+
+    /**
+     * Feeds the ABI of every class in the given archive into the digest, in a form independent of entry order, method
+     * bodies, private members, debug information, and non-class resources. Classes that cannot be parsed contribute
+     * their exact contents instead.
+     * @return {@code false} if the file is not a readable archive, in which case nothing was written to the digest
+     */
+    public static boolean hashAbi(Path path, MessageDigest digest) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(path.toFile());
+        } catch (ZipException e) {
+            return false;
+        }
+        try (zipFile) {
+            List<? extends ZipEntry> entries = zipFile.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().endsWith(".class"))
+                .sorted(Comparator.comparing(ZipEntry::getName))
+                .toList();
+            for (var entry : entries) {
+                byte[] bytes;
+                try (var is = zipFile.getInputStream(entry)) {
+                    bytes = is.readAllBytes();
+                }
+                List<String> abi;
+                try {
+                    abi = classAbi(bytes);
+                } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                    // Unreadable by ASM, such as a class from a newer Java version or a damaged one; its exact bytes
+                    // stand in for its ABI
+                    update(digest, entry.getName());
+                    digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).flip());
+                    digest.update(bytes);
+                    continue;
+                }
+                if (abi == null) {
+                    continue;
+                }
+                update(digest, entry.getName());
+                for (var line : abi) {
+                    update(digest, line);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static void update(MessageDigest digest, String string) {
+        var bytes = string.getBytes(StandardCharsets.UTF_8);
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(bytes.length).flip());
+        digest.update(bytes);
+    }
+
+    private static boolean isVisible(int access) {
+        return (access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC)) == 0;
+    }
+
+    private static @Nullable List<String> classAbi(byte[] bytes) {
+        var visitor = new AbiClassVisitor();
+        new ClassReader(bytes).accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (visitor.privateClass) {
+            return null;
+        }
+        // Member order within a class file is not part of its ABI
+        Collections.sort(visitor.members);
+        var lines = new ArrayList<String>(visitor.header.size() + visitor.members.size());
+        lines.addAll(visitor.header);
+        lines.addAll(visitor.members);
+        return lines;
+    }
+
+    private static final class AbiClassVisitor extends ClassVisitor {
+        private final List<String> header = new ArrayList<>();
+        private final List<String> members = new ArrayList<>();
+        private @Nullable String className;
+        private boolean privateClass;
+
+        private AbiClassVisitor() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.className = name;
+            header.add("class " + (access & ~Opcodes.ACC_SUPER) + " " + name + " " + signature + " " + superName + " " + Arrays.toString(interfaces));
+        }
+
+        @Override
+        public void visitInnerClass(String name, String outerName, String innerName, int access) {
+            if (name.equals(className)) {
+                if ((access & Opcodes.ACC_PRIVATE) != 0) {
+                    privateClass = true;
+                }
+                header.add("inner " + access);
+            }
+        }
+
+        @Override
+        public void visitPermittedSubclass(String permittedSubclass) {
+            header.add("permits " + permittedSubclass);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+            return new AbiAnnotationVisitor(header, "annotation " + descriptor + " " + visible);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+            if (!isVisible(access)) {
+                return null;
+            }
+            var prefix = "field " + name + " " + descriptor;
+            members.add(prefix + " " + access + " " + signature + " " + value);
+            return new FieldVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                    return new AbiAnnotationVisitor(members, prefix + " annotation " + descriptor + " " + visible);
+                }
+            };
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            if (!isVisible(access)) {
+                return null;
+            }
+            var prefix = "method " + name + descriptor;
+            members.add(prefix + " " + access + " " + signature + " " + Arrays.toString(exceptions));
+            return new MethodVisitor(Opcodes.ASM9) {
+                @Override
+                public AnnotationVisitor visitAnnotation(String descriptor, boolean visible) {
+                    return new AbiAnnotationVisitor(members, prefix + " annotation " + descriptor + " " + visible);
+                }
+
+                @Override
+                public AnnotationVisitor visitParameterAnnotation(int parameter, String descriptor, boolean visible) {
+                    return new AbiAnnotationVisitor(members, prefix + " parameter " + parameter + " " + descriptor + " " + visible);
+                }
+
+                @Override
+                public AnnotationVisitor visitAnnotationDefault() {
+                    return new AbiAnnotationVisitor(members, prefix + " default");
+                }
+            };
+        }
+    }
+
+    private static final class AbiAnnotationVisitor extends AnnotationVisitor {
+        private final List<String> target;
+        private final StringBuilder builder;
+        private final @Nullable String closing;
+
+        private AbiAnnotationVisitor(List<String> target, String prefix) {
+            this(target, new StringBuilder(prefix), null);
+        }
+
+        private AbiAnnotationVisitor(List<String> target, StringBuilder builder, @Nullable String closing) {
+            super(Opcodes.ASM9);
+            this.target = target;
+            this.builder = builder;
+            this.closing = closing;
+        }
+
+        @Override
+        public void visit(String name, Object value) {
+            builder.append(' ').append(name).append('=');
+            if (value instanceof Type type) {
+                builder.append(type.getDescriptor());
+            } else if (value.getClass().isArray()) {
+                builder.append(Arrays.deepToString(new Object[] {value}));
+            } else {
+                builder.append(value);
+            }
+        }
+
+        @Override
+        public void visitEnum(String name, String descriptor, String value) {
+            builder.append(' ').append(name).append('=').append(descriptor).append('.').append(value);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String name, String descriptor) {
+            builder.append(' ').append(name).append("=@").append(descriptor).append('(');
+            return new AbiAnnotationVisitor(target, builder, ")");
+        }
+
+        @Override
+        public AnnotationVisitor visitArray(String name) {
+            builder.append(' ').append(name).append("=[");
+            return new AbiAnnotationVisitor(target, builder, "]");
+        }
+
+        @Override
+        public void visitEnd() {
+            if (closing == null) {
+                target.add(builder.toString());
+            } else {
+                builder.append(closing);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package dev.lukebemish.taskgraphrunner.runtime.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight, adjusting the limit from what completed requests achieve. The limit is
+ * re-evaluated once per window of roughly {@code limit} completed requests: it doubles while throughput keeps
+ * improving, until the first time it has to back off, and grows by one per window from then on. It is cut by a quarter
+ * when latency per byte has grown well past the best seen without throughput improving, as requests are then only
+ * queueing, and halved on failures, at most once per cooldown period. Only requests that transferred data count towards
+ * a window, so that requests answered without a transfer do not make every later one look slow.
+ * <p>
+ * Waiting uses a {@link ReentrantLock} rather than a monitor, so that waiting virtual threads do not pin their carriers.
+ */
+final class AdaptiveConcurrencyLimiter {
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double THROUGHPUT_GAIN = 1.05;
+    private static final long FAILURE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int minimum;
+    private final int maximum;
+    private final long start = System.nanoTime();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private int limit;
+    private int inFlight;
+    private boolean slowStart = true;
+    private long lastFailure = start - FAILURE_COOLDOWN_NANOS;
+
+    private long windowStart = start;
+    private int windowRequests;
+    private long windowBytes;
+    private long windowLatency;
+    private double previousThroughput;
+    private double bestLatency = Double.MAX_VALUE;
+
+    private long totalBytes;
+    private int totalRequests;
+    private int failures;
+
+    AdaptiveConcurrencyLimiter(int initial, int minimum, int maximum) {
+        if (minimum < 1 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid concurrency bounds "+minimum+" to "+maximum);
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.limit = Math.clamp(initial, minimum, maximum);
+    }
+
+    void acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= limit) {
+                released.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the outcome of a request started with {@link #acquire()}.
+     * @param bytes the number of bytes transferred; if none were, the request only frees its slot
+     * @param latencyNanos how long the request took
+     */
+    void release(long bytes, long latencyNanos, boolean failed) {
+        lock.lock();
+        try {
+            inFlight--;
+            var now = System.nanoTime();
+            if (failed) {
+                failures++;
+                if (now - lastFailure >= FAILURE_COOLDOWN_NANOS) {
+                    lastFailure = now;
+                    slowStart = false;
+                    limit = Math.max(minimum, limit / 2);
+                    resetWindow(now);
+                }
+            } else if (bytes > 0) {
+                totalBytes += bytes;
+                totalRequests++;
+                windowRequests++;
+                windowBytes += bytes;
+                windowLatency += latencyNanos;
+                if (windowRequests >= limit) {
+                    adjust(now);
+                }
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adjust(long now) {
+        var throughput = windowBytes / (double) Math.max(1, now - windowStart);
+        // Per byte, as objects of very different sizes share a window
+        var latency = windowLatency / (double) windowBytes;
+        bestLatency = Math.min(bestLatency, latency);
+        var improved = throughput > previousThroughput * THROUGHPUT_GAIN;
+        if (latency > bestLatency * LATENCY_TOLERANCE && !improved) {
+            slowStart = false;
+            limit = Math.max(minimum, limit * 3 / 4);
+        } else if (slowStart) {
+            limit = Math.min(maximum, limit * 2);
+        } else {
+            limit = Math.min(maximum, limit + 1);
+        }
+        previousThroughput = throughput;
+        resetWindow(now);
+    }
+
+    private void resetWindow(long now) {
+        windowStart = now;
+        windowRequests = 0;
+        windowBytes = 0;
+        windowLatency = 0;
+    }
+
+    /**
+     * {@return a summary of the bandwidth achieved and the limit reached}
+     */
+    String report() {
+        lock.lock();
+        try {
+            var seconds = (System.nanoTime() - start) / 1e9;
+            var mebibytes = totalBytes / (1024.0 * 1024.0);
+            return String.format("%d requests, %.1f MiB in %.1fs (%.2f MiB/s), %d failed; settled on %d concurrent requests",
+                totalRequests, mebibytes, seconds, seconds > 0 ? mebibytes / seconds : 0, failures, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
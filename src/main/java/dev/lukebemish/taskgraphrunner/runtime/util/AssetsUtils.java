@@ -6,9 +6,12 @@
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -16,7 +19,7 @@
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class AssetsUtils {
     private static final String INDEX_FOLDER = "indexes";
@@ -24,7 +27,10 @@ public final class AssetsUtils {
     private static final String ASSETS_BASE_URL = "https://resources.download.minecraft.net/";
     private static final Logger LOGGER = LoggerFactory.getLogger(AssetsUtils.class);
 
+    // If set, fixes the number of concurrent downloads instead of adapting it to the connection
     private static final String PARALLEL_DOWNLOADS_PROPERTY = "dev.lukebemish.taskgraphrunner.assets.parallel-downloads";
+    private static final String MAX_PARALLEL_DOWNLOADS_PROPERTY = "dev.lukebemish.taskgraphrunner.assets.max-parallel-downloads";
+    private static final int INITIAL_PARALLEL_DOWNLOADS = 8;
 
     // Sort from most to least indexes
     private static final Comparator<Target> ASSET_INDEX_COUNT_DESCENDING = Comparator.<Target>comparingInt(d -> d.indexes.size()).reversed();
@@ -58,8 +64,50 @@ private static List<Target> findTargets(Context.AssetDownloadOptions options) th
         return targets;
     }
 
+    private static List<Path> findLauncherObjectFolders(Context.AssetDownloadOptions options) {
+        var folders = new ArrayList<Path>();
+        for (var launcher : options.potentialLauncherRoots()) {
+            var objectsFolder = launcher.resolve("assets").resolve(OBJECT_FOLDER);
+            if (Files.isDirectory(objectsFolder)) {
+                folders.add(objectsFolder);
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Looks for an asset object in the given launcher object folders, linking or copying it into place if a copy with
+     * the expected size and hash is found.
+     * @return whether the object was found
+     */
+    private static boolean reuseFromLauncher(DownloadTarget target, List<Path> launcherObjectFolders) throws IOException {
+        for (var folder : launcherObjectFolders) {
+            var candidate = folder.resolve(target.name().substring(0, 2)).resolve(target.name());
+            if (!Files.isRegularFile(candidate) || Files.size(candidate) != target.spec().size()) {
+                continue;
+            }
+            // Hashed without recording a checksum on the file, as launcher files are never modified
+            if (!target.spec().checksum().equalsIgnoreCase(DownloadUtils.hashContents(candidate, target.spec().checksumAlgorithm()))) {
+                LOGGER.debug("Ignoring corrupt asset {} in {}", target.name(), folder);
+                continue;
+            }
+            FileUtils.materializeExternal(candidate, target.target());
+            return true;
+        }
+        return false;
+    }
+
     private AssetsUtils() {}
 
+    private static AdaptiveConcurrencyLimiter downloadLimiter() {
+        var fixed = Integer.getInteger(PARALLEL_DOWNLOADS_PROPERTY);
+        if (fixed != null) {
+            return new AdaptiveConcurrencyLimiter(fixed, fixed, fixed);
+        }
+        var maximum = Integer.getInteger(MAX_PARALLEL_DOWNLOADS_PROPERTY, 64);
+        return new AdaptiveConcurrencyLimiter(Math.min(INITIAL_PARALLEL_DOWNLOADS, maximum), 1, maximum);
+    }
+
     public static Path findOrDownloadIndexAndAssets(DownloadUtils.Spec spec, String assetIndexVersion, Context context) throws IOException {
         var assetOptions = context.assetOptions();
         if (!assetOptions.redownloadAssets()) {
@@ -73,7 +121,10 @@ public static Path findOrDownloadIndexAndAssets(DownloadUtils.Spec spec, String
         }
 
         var targetPath = assetOptions.assetRoot().resolve("indexes").resolve(assetIndexVersion + ".json");
-        if (!Files.exists(targetPath) || assetOptions.redownloadAssets()) {
+        if (Files.exists(targetPath) && !assetOptions.redownloadAssets() && !assetOptions.verifyAssets()) {
+            // Recorded explicitly, as access times are often not maintained by the file system
+            FileUtils.setLastAccessedTime(targetPath, FileTime.from(Instant.now()));
+        } else {
             JsonObject json;
             try (var ignored = context.lockManager().lock("assetIndexes."+targetPath.getFileName())) {
                 DownloadUtils.download(spec, targetPath);
@@ -98,32 +149,76 @@ public static Path findOrDownloadIndexAndAssets(DownloadUtils.Spec spec, String
                     })
                     .toList();
 
-                try (var ignored1 = context.lockManager().locks(targets.stream().map(t -> "assets." + t.target().getFileName().toString()).toList())) {
-                    var futures = new ArrayList<Future<?>>();
-                    var semaphore = new Semaphore(Integer.getInteger(PARALLEL_DOWNLOADS_PROPERTY, 8));
-                    for (var target : targets) {
-                        futures.add(context.submit(() -> {
-                            try {
-                                semaphore.acquire();
-                                DownloadUtils.download(target.spec(), target.target());
-                            } catch (IOException | InterruptedException e) {
-                                LOGGER.error("Failed to download asset {} from {}", target.name(), target.spec().uri(), e);
-                                throw new RuntimeException(e);
-                            } finally {
-                                semaphore.release();
+                // Launcher installations often hold most objects already, under indexes for other versions
+                var launcherObjectFolders = assetOptions.redownloadAssets() ? List.<Path>of() : findLauncherObjectFolders(assetOptions);
+                var reused = new AtomicInteger();
+                // Objects are not locked individually: each is written to a partial file and atomically moved into place
+                // once its checksum has been verified, so concurrent downloads of the same object by other processes can
+                // only ever replace it with identical contents
+                var futures = new ArrayList<Future<?>>();
+                var limiter = downloadLimiter();
+                for (var target : targets) {
+                    futures.add(context.submit(() -> {
+                        try {
+                            if (Files.exists(target.target())) {
+                                // Checked before waiting for a download slot, so that hashing is not limited by it. Unless
+                                // verifying, the checksum recorded on the object when it was downloaded or last hashed is
+                                // trusted while the object is unchanged
+                                var algorithm = target.spec().checksumAlgorithm();
+                                var checksum = assetOptions.verifyAssets() ? DownloadUtils.hashContents(target.target(), algorithm) : DownloadUtils.checksum(target.target(), algorithm);
+                                if (target.name().equalsIgnoreCase(checksum)) {
+                                    return null;
+                                }
+                                LOGGER.warn("Cached asset {} does not match its hash, downloading it again", target.name());
+                                // Otherwise a checksum recorded on it before it was damaged would have the download skip it
+                                Files.deleteIfExists(target.target());
+                            } else if (reuseFromLauncher(target, launcherObjectFolders)) {
+                                reused.incrementAndGet();
+                                return null;
                             }
-                        }));
-                    }
-                    for (var future : futures) {
+                        } catch (IOException e) {
+                            LOGGER.warn("Failed to check for an existing copy of asset {}, downloading it instead", target.name(), e);
+                        }
                         try {
-                            future.get();
-                        } catch (InterruptedException | ExecutionException e) {
-                            // It failed; don't keep the bad index around
-                            Files.deleteIfExists(targetPath);
+                            limiter.acquire();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting to download asset "+target.name());
+                        }
+                        var start = System.nanoTime();
+                        boolean failed = true;
+                        long bytes = 0;
+                        try {
+                            if (DownloadUtils.download(target.spec(), target.target())) {
+                                bytes = target.spec().size();
+                            }
+                            failed = false;
+                        } catch (IOException e) {
+                            LOGGER.error("Failed to download asset {} from {}", target.name(), target.spec().uri(), e);
                             throw new RuntimeException(e);
+                        } finally {
+                            limiter.release(bytes, System.nanoTime() - start, failed);
+                        }
+                        return null;
+                    }));
+                }
+                for (var future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        if (e instanceof InterruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                        // Objects not yet started are not worth waiting for
+                        for (var other : futures) {
+                            other.cancel(true);
                         }
+                        // It failed; don't keep the bad index around
+                        Files.deleteIfExists(targetPath);
+                        throw new RuntimeException(e);
                     }
                 }
+                LOGGER.info("Downloaded assets for index {}: {}; reused {} objects from launcher installations", assetIndexVersion, limiter.report(), reused.get());
             }
         }
 
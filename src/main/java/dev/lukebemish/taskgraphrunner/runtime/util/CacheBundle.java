@@ -0,0 +1,189 @@
+package dev.lukebemish.taskgraphrunner.runtime.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A zip archive of task states and the objects they refer to, for seeding a cache directory. Objects are stored at
+ * their path within {@code objects/}, and states at {@code states/<key>}, encoded as by {@link MetadataStore#encode}.
+ */
+public final class CacheBundle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheBundle.class);
+
+    private static final String OBJECTS = "objects/";
+    private static final String STATES = "states/";
+    private static final Pattern OBJECT_ENTRY = Pattern.compile("^objects/([0-9a-f]{2})/(([0-9a-f]{64})\\.[^/]+)$");
+
+    private CacheBundle() {}
+
+    /**
+     * Writes the given states, and every object they refer to, to a bundle.
+     * @return the number of objects written
+     */
+    public static int write(Path cacheDirectory, Map<String, MetadataStore.TaskState> states, Path bundle) throws IOException {
+        var objectsDirectory = cacheDirectory.resolve("objects");
+        Map<String, Path> objects = new LinkedHashMap<>();
+        for (var state : states.values()) {
+            for (var output : state.outputs().values()) {
+                var name = output.objectHash().substring(0, 2) + "/" + output.objectHash() + "." + output.type();
+                var path = objectsDirectory.resolve(name);
+                if (!Files.isRegularFile(path)) {
+                    throw new IOException("Object " + name + " is missing from " + objectsDirectory);
+                }
+                objects.put(name, path);
+            }
+        }
+        var parent = bundle.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        var temporary = parent.resolve("." + bundle.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (var out = new ZipOutputStream(Files.newOutputStream(temporary))) {
+                // Most objects are jars, which are compressed already
+                out.setLevel(Deflater.BEST_SPEED);
+                for (var entry : objects.entrySet()) {
+                    out.putNextEntry(new ZipEntry(OBJECTS + entry.getKey()));
+                    Files.copy(entry.getValue(), out);
+                    out.closeEntry();
+                }
+                for (var entry : states.entrySet()) {
+                    out.putNextEntry(new ZipEntry(STATES + entry.getKey()));
+                    out.write(MetadataStore.encode(entry.getValue()));
+                    out.closeEntry();
+                }
+            }
+            Files.move(temporary, bundle, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return objects.size();
+    }
+
+    /**
+     * Unpacks a bundle into a cache directory. Objects are checked against their hashes as they are extracted, and a
+     * state is only recorded if every object it refers to is present afterward; states already present in the cache
+     * are kept.
+     * @return the number of states recorded
+     */
+    public static int read(Path bundle, Path cacheDirectory, int parallelism) throws IOException {
+        var objectsDirectory = cacheDirectory.resolve("objects");
+        var metadataStore = MetadataStore.open(cacheDirectory);
+        Map<String, MetadataStore.TaskState> states = new LinkedHashMap<>();
+        try (var zip = new ZipFile(bundle.toFile())) {
+            var semaphore = new Semaphore(parallelism);
+            var futures = new ArrayList<Future<?>>();
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                var entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    var entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    var name = entry.getName();
+                    if (name.startsWith(STATES)) {
+                        try (var in = zip.getInputStream(entry)) {
+                            states.put(name.substring(STATES.length()), MetadataStore.decode(in.readAllBytes()));
+                        }
+                        continue;
+                    }
+                    var matcher = OBJECT_ENTRY.matcher(name);
+                    if (!matcher.matches()) {
+                        throw new IOException("Unexpected entry " + name + " in cache bundle " + bundle);
+                    }
+                    var target = objectsDirectory.resolve(matcher.group(1)).resolve(matcher.group(2));
+                    var hash = matcher.group(3);
+                    futures.add(executor.submit(() -> {
+                        semaphore.acquire();
+                        try {
+                            extractObject(zip, entry, hash, target);
+                        } finally {
+                            semaphore.release();
+                        }
+                        return null;
+                    }));
+                }
+                for (var future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioException) {
+                    throw ioException;
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        int recorded = 0;
+        for (var entry : states.entrySet()) {
+            var state = entry.getValue();
+            boolean complete = true;
+            for (var output : state.outputs().values()) {
+                if (!Files.isRegularFile(objectsDirectory.resolve(output.objectHash().substring(0, 2)).resolve(output.objectHash() + "." + output.type()))) {
+                    complete = false;
+                    break;
+                }
+            }
+            if (!complete) {
+                LOGGER.warn("Skipping state {} from {}, as objects it refers to are missing", entry.getKey(), bundle);
+                continue;
+            }
+            if (metadataStore.taskState(entry.getKey()) == null) {
+                metadataStore.putTaskState(entry.getKey(), state.withLastAccessed(System.currentTimeMillis()));
+                recorded++;
+            }
+        }
+        return recorded;
+    }
+
+    private static void extractObject(ZipFile zip, ZipEntry entry, String hash, Path target) throws IOException, NoSuchAlgorithmException {
+        if (Files.exists(target)) {
+            return;
+        }
+        Files.createDirectories(target.getParent());
+        var partial = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".partial");
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            try (var in = zip.getInputStream(entry);
+                 OutputStream out = new DigestOutputStream(Files.newOutputStream(partial), digest)) {
+                in.transferTo(out);
+            }
+            var actual = HexFormat.of().formatHex(digest.digest());
+            if (!actual.equals(hash)) {
+                throw new IOException("Object " + entry.getName() + " in cache bundle has hash " + actual);
+            }
+            try {
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ignored) {
+                // Inserted concurrently by another process
+            }
+            FileUtils.makeReadOnly(target);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+}
@@ -1,81 +1,602 @@
 package dev.lukebemish.taskgraphrunner.runtime.util;
 
+import org.jspecify.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class DownloadUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(DownloadUtils.class);
 
     private static final String USER_AGENT = "TaskGraphRunner/"+ DownloadUtils.class.getPackage().getImplementationVersion();
 
+    private static final String MAX_REQUESTS_PER_HOST_PROPERTY = "dev.lukebemish.taskgraphrunner.downloads.max-requests-per-host";
+    private static final int MAX_REQUESTS_PER_HOST = Integer.getInteger(MAX_REQUESTS_PER_HOST_PROPERTY, 64);
+
+    // Shared so that connections are pooled, and requests to the same host are multiplexed over one connection where
+    // the server supports HTTP/2
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(30))
+        .build();
+
+    private static final Map<String, Semaphore> HOST_PERMITS = new ConcurrentHashMap<>();
+
+    private record Flight(@Nullable String checksum, CompletableFuture<Boolean> result) {}
+
+    // Keyed by target alone, as every download of a target shares its partial file
+    private static final Map<Path, Flight> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private static final String FINGERPRINT_ATTRIBUTE = "taskgraphrunner.checksum";
+    private static final Set<FileStore> UNFINGERPRINTED_STORES = ConcurrentHashMap.newKeySet();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String PARALLEL_RANGE_THRESHOLD_PROPERTY = "dev.lukebemish.taskgraphrunner.downloads.parallel-range-threshold";
+    private static final long PARALLEL_RANGE_THRESHOLD = Long.getLong(PARALLEL_RANGE_THRESHOLD_PROPERTY, 16 * 1024 * 1024);
+    private static final String PARALLEL_RANGES_PROPERTY = "dev.lukebemish.taskgraphrunner.downloads.parallel-ranges";
+    private static final int PARALLEL_RANGES = Integer.getInteger(PARALLEL_RANGES_PROPERTY, 4);
+
     private DownloadUtils() {}
 
     public static boolean download(Spec spec, Path target) throws IOException {
+        return download(spec, target, null);
+    }
+
+    /**
+     * Downloads a file to the target path, unless it is present already with the expected checksum. Concurrent calls
+     * in this process for the same target and checksum share a single transfer; calls for the same target with a
+     * different checksum wait for the transfer in flight to finish before starting their own. If a lock manager is
+     * given, the download also holds a lock in its directory, so other processes downloading the same target wait for
+     * this one and then find the file in place.
+     * @return whether the file was downloaded
+     */
+    public static boolean download(Spec spec, Path target, @Nullable LockManager lockManager) throws IOException {
+        var absoluteTarget = target.toAbsolutePath().normalize();
+        var flight = new Flight(spec.checksum() == null ? null : spec.checksum().toLowerCase(Locale.ROOT), new CompletableFuture<>());
+        Flight existing;
+        while ((existing = IN_FLIGHT.putIfAbsent(absoluteTarget, flight)) != null) {
+            try {
+                if (Objects.equals(existing.checksum(), flight.checksum())) {
+                    LOGGER.debug("Waiting for in-flight download of "+spec.uri()+" -> "+absoluteTarget);
+                    try {
+                        return existing.result().get();
+                    } catch (ExecutionException e) {
+                        throw new IOException("Failed to download "+spec.uri(), e.getCause());
+                    }
+                }
+                LOGGER.debug("Waiting for in-flight download of different contents to "+absoluteTarget+" before downloading "+spec.uri());
+                try {
+                    existing.result().get();
+                } catch (ExecutionException ignored) {
+                    // Its failure says nothing about this download
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for download of "+spec.uri());
+            }
+        }
+        try {
+            boolean downloaded;
+            if (lockManager == null) {
+                downloaded = downloadUnshared(spec, target);
+            } else {
+                try (var ignored = lockManager.lock("download."+HashUtils.hash(absoluteTarget.toString()))) {
+                    downloaded = downloadUnshared(spec, target);
+                }
+            }
+            flight.result().complete(downloaded);
+            return downloaded;
+        } catch (IOException | RuntimeException e) {
+            flight.result().completeExceptionally(e);
+            throw e;
+        } finally {
+            IN_FLIGHT.remove(absoluteTarget, flight);
+        }
+    }
+
+    private static boolean downloadUnshared(Spec spec, Path target) throws IOException {
         var uri = spec.uri();
         LOGGER.debug("Downloading "+uri+" -> "+target.toAbsolutePath());
         var checksum = spec.checksum();
         var checksumAlgorithm = spec.checksumAlgorithm();
         if (checksum != null && checksumAlgorithm != null && Files.exists(target)) {
-            var existingHash = HashUtils.hash(target, checksumAlgorithm);
+            var existingHash = checksum(target, checksumAlgorithm);
             if (checksum.equalsIgnoreCase(existingHash)) {
                 LOGGER.debug("Checksum for "+target+" matches, skipping download");
                 return false;
             }
         }
 
+        if (checksum != null && checksumAlgorithm != null) {
+            try {
+                return downloadResumable(spec, target);
+            } catch (OverlappingFileLockException e) {
+                // The same file is being downloaded elsewhere in this process; download a private copy instead
+                LOGGER.debug("Partial download of "+target+" is in use, downloading without resuming");
+            }
+        }
+        return downloadOnce(spec, target);
+    }
+
+    private static boolean downloadOnce(Spec spec, Path target) throws IOException {
+        var uri = spec.uri();
+        var checksum = spec.checksum();
+        var checksumAlgorithm = spec.checksumAlgorithm();
         var partial = target.resolveSibling(target.getFileName()+"."+Math.random()+".partial");
         Files.createDirectories(partial.getParent());
 
-        var connection = (HttpURLConnection) uri.toURL().openConnection();
-        connection.setRequestProperty("User-Agent", USER_AGENT);
+        var request = HttpRequest.newBuilder(uri)
+            .header("User-Agent", USER_AGENT)
+            .GET();
 
         if (Files.exists(target)) {
             long lastModified = Files.getLastModifiedTime(target).toMillis();
             if (lastModified != 0) {
-                connection.setIfModifiedSince(lastModified);
+                request.header("If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(lastModified).atZone(ZoneOffset.UTC)));
             }
         }
 
-        connection.connect();
+        // The checksum is computed as the body is written, rather than by reading the file back afterward
+        var digest = checksumAlgorithm == null ? null : messageDigest(checksumAlgorithm);
+        try {
+            var response = send(request.build());
 
-        if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
-            LOGGER.debug("File not modified, skipping download");
-            return false;
-        }
+            if (response.statusCode() == 304) {
+                LOGGER.debug("File not modified, skipping download");
+                return false;
+            }
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException("Failed to download "+uri+": server responded with status "+response.statusCode());
+            }
 
-        try (var input = connection.getInputStream()) {
-            Files.copy(input, partial);
+            long size = 0;
+            try (var input = response.body();
+                 var output = Files.newOutputStream(partial)) {
+                var buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    size += read;
+                    if (spec.size() != -1 && size > spec.size()) {
+                        throw new IOException("Downloaded file size does not match expected size (found more than "+spec.size()+" bytes)");
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    output.write(buffer, 0, read);
+                }
+            }
 
-            if (spec.size() != -1 && Files.size(partial) != spec.size()) {
-                throw new IOException("Downloaded file size does not match expected size (found "+Files.size(partial)+", expected "+spec.size()+")");
+            if (spec.size() != -1 && size != spec.size()) {
+                throw new IOException("Downloaded file size does not match expected size (found "+size+", expected "+spec.size()+")");
             }
 
-            if (checksum != null && checksumAlgorithm != null) {
-                var hash = HashUtils.hash(partial, checksumAlgorithm);
-                if (!checksum.equalsIgnoreCase(hash)) {
+            if (digest != null) {
+                var hash = HexFormat.of().formatHex(digest.digest());
+                if (checksum != null && !checksum.equalsIgnoreCase(hash)) {
                     throw new IOException("Downloaded file checksum does not match expected checksum (found "+hash+", expected "+checksum+")");
                 }
+                recordFingerprint(partial, checksumAlgorithm, hash);
             }
 
-            try {
-                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
-            } catch (AtomicMoveNotSupportedException ignored) {
-                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
-            }
+            moveIntoPlace(partial, target);
         } finally {
             Files.deleteIfExists(partial);
         }
         return true;
     }
 
+    /**
+     * Downloads a file whose checksum is known into a partial file with a stable name, so that an interrupted download
+     * continues where it left off the next time it is attempted. Large files of known size are fetched as several
+     * concurrent range requests, each into its own partial file. Partial files are locked while they are written, so a
+     * concurrent download of the same file by another process waits for this one rather than interfering with it.
+     * @return whether the file was downloaded, rather than moved into place by another process in the meantime
+     */
+    private static boolean downloadResumable(Spec spec, Path target) throws IOException {
+        var partial = target.resolveSibling(target.getFileName()+".partial");
+        Files.createDirectories(partial.getParent());
+        var digest = messageDigest(spec.checksumAlgorithm());
+        boolean fetched = false;
+        if (spec.size() >= PARALLEL_RANGE_THRESHOLD && PARALLEL_RANGES > 1) {
+            fetched = fetchRanges(spec, target, partial, digest);
+        }
+        if (!fetched) {
+            fetch(spec.uri(), 0, spec.size(), partial, digest, true);
+        }
+
+        if (Files.notExists(partial) && placedConcurrently(spec, target)) {
+            return false;
+        }
+        var size = Files.size(partial);
+        if (spec.size() != -1 && size != spec.size()) {
+            Files.delete(partial);
+            throw new IOException("Downloaded file size does not match expected size (found "+size+", expected "+spec.size()+")");
+        }
+        var hash = HexFormat.of().formatHex(digest.digest());
+        if (!spec.checksum().equalsIgnoreCase(hash)) {
+            // Nothing in the partial file can be trusted to resume from
+            Files.delete(partial);
+            throw new IOException("Downloaded file checksum does not match expected checksum (found "+hash+", expected "+spec.checksum()+")");
+        }
+        recordFingerprint(partial, spec.checksumAlgorithm(), hash);
+        try {
+            moveIntoPlace(partial, target);
+        } catch (NoSuchFileException e) {
+            if (placedConcurrently(spec, target)) {
+                return false;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether another process, having finished the same partial file after this one stopped writing to it, has
+     * already moved it into place.
+     */
+    private static boolean placedConcurrently(Spec spec, Path target) throws IOException {
+        if (!Files.exists(target)) {
+            return false;
+        }
+        var existingHash = fingerprintedChecksum(target, spec.checksumAlgorithm());
+        if (existingHash == null) {
+            existingHash = HashUtils.hash(target, spec.checksumAlgorithm());
+        }
+        return spec.checksum().equalsIgnoreCase(existingHash);
+    }
+
+    /**
+     * Fetches a file as several ranges into separate partial files concurrently, then joins them into the partial file.
+     * @return whether the range requests succeeded; {@code false} if the server does not support them
+     */
+    private static boolean fetchRanges(Spec spec, Path target, Path partial, MessageDigest digest) throws IOException {
+        var size = spec.size();
+        var rangeSize = (size + PARALLEL_RANGES - 1) / PARALLEL_RANGES;
+        var files = new ArrayList<Path>();
+        var futures = new ArrayList<Future<Boolean>>();
+        boolean supported = true;
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (long start = 0; start < size; start += rangeSize) {
+                var rangeStart = start;
+                var rangeEnd = Math.min(size, start + rangeSize);
+                var file = target.resolveSibling(target.getFileName()+".partial."+files.size());
+                files.add(file);
+                futures.add(executor.submit(() -> fetch(spec.uri(), rangeStart, rangeEnd, file, null, false)));
+            }
+            for (var future : futures) {
+                supported &= future.get();
+            }
+        } catch (ExecutionException e) {
+            switch (e.getCause()) {
+                case IOException ioException -> throw ioException;
+                case RuntimeException runtimeException -> throw runtimeException;
+                default -> throw new IOException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading "+spec.uri());
+        }
+        if (supported) {
+            try (var output = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 var ignored = output.lock()) {
+                digest.reset();
+                var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                for (var file : files) {
+                    try (var input = FileChannel.open(file, StandardOpenOption.READ)) {
+                        while (input.read(buffer) != -1) {
+                            buffer.flip();
+                            digest.update(buffer.array(), 0, buffer.limit());
+                            while (buffer.hasRemaining()) {
+                                output.write(buffer);
+                            }
+                            buffer.clear();
+                        }
+                    }
+                }
+            }
+        } else {
+            LOGGER.debug("Server for "+spec.uri()+" does not support range requests, downloading in one piece");
+        }
+        for (var file : files) {
+            Files.deleteIfExists(file);
+        }
+        return supported;
+    }
+
+    /**
+     * Fetches bytes {@code [start, end)} of a resource into a file, continuing from whatever the file already holds. The
+     * digest, if given, is left holding the digest of the whole file.
+     * @param end the end of the range, or {@code -1} to fetch to the end of the resource
+     * @param allowFull whether a server that ignores the range may send the whole resource instead; only sensible when
+     *                  the range starts at {@code 0}
+     * @return {@code false} if the server ignored the range and {@code allowFull} is not set
+     */
+    private static boolean fetch(URI uri, long start, long end, Path file, @Nullable MessageDigest digest, boolean allowFull) throws IOException {
+        var length = end < 0 ? -1 : end - start;
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             var ignored = channel.lock()) {
+            var existing = channel.size();
+            if (length >= 0 && existing > length) {
+                channel.truncate(0);
+                existing = 0;
+            }
+            if (digest != null) {
+                digest.reset();
+                updateDigest(digest, channel, existing);
+            }
+            if (length >= 0 && existing == length) {
+                return true;
+            }
+            for (int attempt = 0; ; attempt++) {
+                var request = HttpRequest.newBuilder(uri)
+                    .header("User-Agent", USER_AGENT)
+                    .GET();
+                if (existing > 0 || !allowFull) {
+                    request.header("Range", "bytes="+(start + existing)+"-"+(end < 0 ? "" : String.valueOf(end - 1)));
+                }
+                var response = send(request.build());
+                var status = response.statusCode();
+                if (status == 416 && existing > 0 && attempt == 0) {
+                    // What was kept does not fit the resource any more; start over
+                    channel.truncate(0);
+                    existing = 0;
+                    if (digest != null) {
+                        digest.reset();
+                    }
+                    continue;
+                }
+                if (status == 200) {
+                    if (!allowFull) {
+                        response.body().close();
+                        return false;
+                    }
+                    if (existing > 0) {
+                        channel.truncate(0);
+                        existing = 0;
+                        if (digest != null) {
+                            digest.reset();
+                        }
+                    }
+                } else if (status == 206) {
+                    var contentRange = response.headers().firstValue("Content-Range").orElse("");
+                    if (!contentRange.startsWith("bytes "+(start + existing)+"-")) {
+                        response.body().close();
+                        throw new IOException("Failed to download "+uri+": server sent range `"+contentRange+"` when asked for bytes from "+(start + existing));
+                    }
+                } else {
+                    if (response.body() != null) {
+                        response.body().close();
+                    }
+                    throw new IOException("Failed to download "+uri+": server responded with status "+status);
+                }
+                var position = existing;
+                try (var input = response.body()) {
+                    var buffer = new byte[BUFFER_SIZE];
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        if (length >= 0 && position + read > length) {
+                            throw new IOException("Downloaded file size does not match expected size (found more than "+length+" bytes in range starting at "+start+")");
+                        }
+                        if (digest != null) {
+                            digest.update(buffer, 0, read);
+                        }
+                        var wrapped = ByteBuffer.wrap(buffer, 0, read);
+                        while (wrapped.hasRemaining()) {
+                            position += channel.write(wrapped, position);
+                        }
+                    }
+                }
+                if (length >= 0 && position != length) {
+                    throw new IOException("Download of "+uri+" ended after "+position+" of "+length+" bytes in range starting at "+start);
+                }
+                return true;
+            }
+        }
+    }
+
+    private static void updateDigest(MessageDigest digest, FileChannel channel, long length) throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = 0;
+        while (position < length) {
+            buffer.clear();
+            if (length - position < buffer.capacity()) {
+                buffer.limit((int) (length - position));
+            }
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+
+    private static void moveIntoPlace(Path partial, Path target) throws IOException {
+        try {
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ignored) {
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest messageDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported checksum algorithm "+algorithm, e);
+        }
+    }
+
+    /**
+     * {@return the checksum of the file's contents} The checksum recorded on the file when it was downloaded or last
+     * hashed is trusted while the file's size, modification time and file key are unchanged; otherwise the file is
+     * hashed again, and the result recorded where the file system allows it.
+     */
+    static String checksum(Path path, String algorithm) throws IOException {
+        var checksum = fingerprintedChecksum(path, algorithm);
+        if (checksum == null) {
+            checksum = hashContents(path, algorithm);
+            recordFingerprint(path, algorithm, checksum);
+        }
+        return checksum;
+    }
+
+    // Hashed directly rather than through HashUtils, so that thousands of assets do not evict its cached hashes
+    static String hashContents(Path path, String algorithm) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unsupported checksum algorithm "+algorithm, e);
+        }
+        try (var input = Files.newInputStream(path)) {
+            input.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * {@return the checksum recorded for the file when it was downloaded, if the file has not been modified since}
+     * Checksums are recorded in a user-defined file attribute, alongside the size, modification time and file key they
+     * were computed for, so that a different file with the same attributes copied over it is not trusted; on file
+     * systems without such attributes nothing is recorded.
+     */
+    private static @Nullable String fingerprintedChecksum(Path path, String algorithm) {
+        try {
+            var view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+            if (view == null) {
+                return null;
+            }
+            var buffer = ByteBuffer.allocate(view.size(FINGERPRINT_ATTRIBUTE));
+            view.read(FINGERPRINT_ATTRIBUTE, buffer);
+            // The file key goes last, as its form is platform-specific
+            var parts = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).split(":", 5);
+            if (parts.length != 5 || !parts[0].equals(algorithm)) {
+                return null;
+            }
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (Long.parseLong(parts[2]) != attributes.size() || Long.parseLong(parts[3]) != attributes.lastModifiedTime().toMillis() || !parts[4].equals(fileKey(attributes))) {
+                return null;
+            }
+            return parts[1];
+        } catch (IOException | UnsupportedOperationException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void recordFingerprint(Path path, String algorithm, String checksum) {
+        try {
+            var store = Files.getFileStore(path);
+            var view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+            if (view == null || !store.supportsFileAttributeView(UserDefinedFileAttributeView.class)) {
+                if (UNFINGERPRINTED_STORES.add(store)) {
+                    LOGGER.info("File store {} does not support user-defined file attributes, so checksums cannot be recorded there and existing files will be hashed again on every check", store);
+                }
+                return;
+            }
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            var fingerprint = algorithm+":"+checksum.toLowerCase(Locale.ROOT)+":"+attributes.size()+":"+attributes.lastModifiedTime().toMillis()+":"+fileKey(attributes);
+            view.write(FINGERPRINT_ATTRIBUTE, StandardCharsets.UTF_8.encode(fingerprint));
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Could not record checksum of {}", path, e);
+        }
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        // File keys are not available everywhere; without one, size and modification time must suffice
+        var fileKey = attributes.fileKey();
+        return fileKey == null ? "-" : fileKey.toString();
+    }
+
+    /**
+     * Sends a request, holding one of its host's permits until the transfer is over. The body of a successful response
+     * is a stream that gives the permit back once closed, so callers must always close it; other responses have no
+     * body, and give the permit back straight away.
+     */
+    private static HttpResponse<@Nullable InputStream> send(HttpRequest request) throws IOException {
+        var permits = HOST_PERMITS.computeIfAbsent(String.valueOf(request.uri().getAuthority()), host -> new Semaphore(MAX_REQUESTS_PER_HOST));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading "+request.uri());
+        }
+        var released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        try {
+            var response = CLIENT.send(request, info -> info.statusCode() / 100 == 2
+                ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), input -> new FilterInputStream(input) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            release.run();
+                        }
+                    }
+                })
+                : HttpResponse.BodySubscribers.<@Nullable InputStream>replacing(null));
+            if (response.body() == null) {
+                release.run();
+            }
+            return response;
+        } catch (InterruptedException e) {
+            release.run();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading "+request.uri());
+        } catch (IOException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
     public sealed interface Spec {
         URI uri();
 
@@ -1,14 +1,32 @@
 package dev.lukebemish.taskgraphrunner.runtime.util;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class FileUtils {
     private FileUtils() {}
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileUtils.class);
+
+    private static final boolean DISABLE_HARD_LINKS = Boolean.getBoolean("dev.lukebemish.taskgraphrunner.disablehardlinks");
+    private static final Map<FileStore, Boolean> REFLINK_SUPPORT = new ConcurrentHashMap<>();
+    private static final String REFLINK_THRESHOLD_PROPERTY = "dev.lukebemish.taskgraphrunner.reflink-threshold";
+    private static final long REFLINK_THRESHOLD = Long.getLong(REFLINK_THRESHOLD_PROPERTY, 1024 * 1024);
+
     public static String escapeForArgument(String argument) {
         if (argument.contains("\"") || argument.contains(" ") || argument.contains("'")) {
             argument = argument.replace("\\", "\\\\");
@@ -35,4 +53,136 @@ public static void deleteRecursively(Path path) throws IOException {
     public static void setLastAccessedTime(Path path, FileTime now) throws IOException {
         Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(null, now, null);
     }
+
+    /**
+     * Places the contents of a cache object at the target path, replacing anything there. The cheapest available
+     * mechanism is used: a copy-on-write clone where the file system supports one, then a hard link, then a copy.
+     * Clones are made by running {@code cp}, so cost a process each; they are only attempted for files of at least
+     * {@code dev.lukebemish.taskgraphrunner.reflink-threshold} bytes (1 MiB by default), below which linking or copying
+     * is cheaper. Objects are only hard linked where they can be made read-only, so writing to the target in place cannot corrupt
+     * the cache; a hard-linked target is therefore read-only as well. A target with identical contents is left
+     * untouched, so that its modification time doesn't change. The target is always swapped in with an atomic move, so
+     * other processes never see it partially written.
+     */
+    public static void materialize(Path source, Path target) throws IOException {
+        materialize(source, target, true);
+    }
+
+    /**
+     * Like {@link #materialize(Path, Path)}, for a source this cache does not own, such as a launcher's asset or an
+     * object in a shared cache layer. The source is never modified; it is only hard linked if it is read-only already.
+     */
+    public static void materializeExternal(Path source, Path target) throws IOException {
+        materialize(source, target, false);
+    }
+
+    private static void materialize(Path source, Path target, boolean ownsSource) throws IOException {
+        if (Files.exists(target) && (Files.isSameFile(source, target) || sameContents(source, target))) {
+            return;
+        }
+        var parent = target.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        var temporary = parent.resolve("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            if (!reflink(source, temporary) && !hardLink(source, temporary, ownsSource)) {
+                Files.copy(source, temporary, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static boolean sameContents(Path source, Path target) throws IOException {
+        if (!Files.isRegularFile(target) || Files.size(source) != Files.size(target)) {
+            return false;
+        }
+        // The source's hash is usually cached already, from checking whether the task producing it was up-to-date
+        return HashUtils.hash(source).equals(HashUtils.hash(target));
+    }
+
+    private static boolean reflink(Path source, Path temporary) throws IOException {
+        if (!OsUtils.isLinux() && !OsUtils.isMac()) {
+            return false;
+        }
+        // Starting a process costs far more than copying a small file
+        if (Files.size(source) < REFLINK_THRESHOLD) {
+            return false;
+        }
+        var store = Files.getFileStore(temporary.getParent());
+        if (REFLINK_SUPPORT.get(store) == Boolean.FALSE) {
+            return false;
+        }
+        // A clone never crosses file systems, and failing to make one says nothing about the target's file system
+        if (!Files.getFileStore(source).equals(store)) {
+            return false;
+        }
+        var command = OsUtils.isMac()
+            ? new String[] {"cp", "-c", source.toAbsolutePath().toString(), temporary.toString()}
+            : new String[] {"cp", "--reflink=always", source.toAbsolutePath().toString(), temporary.toString()};
+        boolean success;
+        try {
+            var process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            success = process.waitFor() == 0;
+        } catch (IOException e) {
+            success = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (!success) {
+            Files.deleteIfExists(temporary);
+            if (REFLINK_SUPPORT.put(store, false) == null) {
+                LOGGER.debug("File system {} does not support reflinks", store);
+            }
+        } else {
+            REFLINK_SUPPORT.put(store, true);
+        }
+        return success;
+    }
+
+    private static boolean hardLink(Path source, Path temporary, boolean ownsSource) {
+        if (DISABLE_HARD_LINKS) {
+            return false;
+        }
+        try {
+            // Without enforced permissions, an in-place write to the link would silently change the object
+            if (ownsSource ? !makeReadOnly(source) : !isReadOnly(source)) {
+                return false;
+            }
+            Files.createLink(temporary, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static boolean isReadOnly(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (view == null) {
+            return false;
+        }
+        var permissions = view.readAttributes().permissions();
+        return !permissions.contains(PosixFilePermission.OWNER_WRITE) && !permissions.contains(PosixFilePermission.GROUP_WRITE) && !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+    }
+
+    /**
+     * Removes write permissions from a file where the file system supports POSIX permissions; elsewhere read-only files
+     * could not be replaced or cleaned up, so nothing is done.
+     * @return whether the file is now protected from writes
+     */
+    public static boolean makeReadOnly(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (view == null) {
+            return false;
+        }
+        var permissions = EnumSet.copyOf(view.readAttributes().permissions());
+        if (permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE))) {
+            view.setPermissions(permissions);
+        }
+        return true;
+    }
 }
@@ -1,10 +1,12 @@
 package dev.lukebemish.taskgraphrunner.runtime.util;
 
+import dev.lukebemish.taskgraphrunner.model.ContentNormalization;
 import dev.lukebemish.taskgraphrunner.runtime.RecordedInput;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -12,10 +14,15 @@
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
 import java.util.HexFormat;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 
 public final class HashUtils {
     private HashUtils() {}
@@ -24,17 +31,25 @@ private HashUtils() {}
     private static final int pathsToCache = 1024;
     private static final Map<CacheKey, CacheResult> cachedHashes = new ConcurrentHashMap<>();
 
-    private record CacheKey(Path path, String algorithm) {}
+    private record CacheKey(Path path, String algorithm, ContentNormalization normalization) {}
     private record CacheResult(byte[] result, FileTime lastModified) {}
 
     public static void hash(Path path, RecordedInput.ByteConsumer digest) {
         hash(path, digest, "MD5");
     }
 
+    public static void hash(Path path, RecordedInput.ByteConsumer digest, ContentNormalization normalization) {
+        hash(path, digest, "MD5", normalization);
+    }
+
     private static final Object cacheKeyLock = new Object();
 
     public static void hash(Path path, RecordedInput.ByteConsumer finalDigest, String algorithm) {
-        var cacheKey = new CacheKey(path, algorithm);
+        hash(path, finalDigest, algorithm, ContentNormalization.NONE);
+    }
+
+    public static void hash(Path path, RecordedInput.ByteConsumer finalDigest, String algorithm, ContentNormalization normalization) {
+        var cacheKey = new CacheKey(path, algorithm, normalization);
         synchronized (cacheKeyLock) {
             cachedHashPaths.addFirst(cacheKey);
             while (cachedHashPaths.size() > pathsToCache) {
@@ -49,7 +64,7 @@ public static void hash(Path path, RecordedInput.ByteConsumer finalDigest, Strin
                 if (Files.getLastModifiedTime(path).compareTo(existingHash.lastModified()) != 0) {
                     cachedHashes.remove(cacheKey);
                     cachedHashPaths.remove(cacheKey);
-                    hash(path, finalDigest, algorithm);
+                    hash(path, finalDigest, algorithm, normalization);
                     return;
                 }
             } catch (IOException e) {
@@ -59,11 +74,20 @@ public static void hash(Path path, RecordedInput.ByteConsumer finalDigest, Strin
             return;
         }
 
-        try (var is = Files.newInputStream(path)) {
+        try {
+            var lastModified = Files.getLastModifiedTime(path);
             MessageDigest digest = MessageDigest.getInstance(algorithm);
-            is.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+            boolean normalized = switch (normalization) {
+                case NONE -> false;
+                case ABI -> AbiUtils.hashAbi(path, digest);
+                case ARCHIVE -> hashArchive(path, digest, algorithm);
+            };
+            if (!normalized) {
+                try (var is = Files.newInputStream(path)) {
+                    is.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), digest));
+                }
+            }
             var hash = digest.digest();
-            var lastModified = Files.getLastModifiedTime(path);
             cachedHashes.put(cacheKey, new CacheResult(hash, lastModified));
             finalDigest.update(hash);
         } catch (IOException | NoSuchAlgorithmException e) {
@@ -71,6 +95,32 @@ public static void hash(Path path, RecordedInput.ByteConsumer finalDigest, Strin
         }
     }
 
+    private static boolean hashArchive(Path path, MessageDigest digest, String algorithm) throws IOException, NoSuchAlgorithmException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(path.toFile());
+        } catch (ZipException e) {
+            return false;
+        }
+        try (zipFile) {
+            List<? extends ZipEntry> entries = zipFile.stream()
+                .filter(entry -> !entry.isDirectory())
+                .sorted(Comparator.comparing(ZipEntry::getName))
+                .toList();
+            var entryDigest = MessageDigest.getInstance(algorithm);
+            for (var entry : entries) {
+                var name = entry.getName().getBytes(StandardCharsets.UTF_8);
+                digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(name.length).flip());
+                digest.update(name);
+                try (var is = zipFile.getInputStream(entry)) {
+                    is.transferTo(new DigestOutputStream(OutputStream.nullOutputStream(), entryDigest));
+                }
+                digest.update(entryDigest.digest());
+            }
+        }
+        return true;
+    }
+
     public static void hash(String key, RecordedInput.ByteConsumer digest) {
         digest.update(key.getBytes(StandardCharsets.UTF_8));
     }
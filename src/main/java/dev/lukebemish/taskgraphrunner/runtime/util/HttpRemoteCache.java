@@ -0,0 +1,148 @@
+package dev.lukebemish.taskgraphrunner.runtime.util;
+
+import dev.lukebemish.taskgraphrunner.runtime.RemoteCache;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A remote cache served over plain HTTP, with states at {@code <base>/states/<key>} and objects at
+ * {@code <base>/objects/<name>}. Entries are retrieved with {@code GET} and stored with {@code PUT}; a {@code 404}
+ * means the entry is absent. Credentials in the base URI are sent as basic authentication.
+ */
+public final class HttpRemoteCache implements RemoteCache {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration STATE_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration OBJECT_TIMEOUT = Duration.ofMinutes(10);
+
+    private final HttpClient client;
+    private final URI base;
+    private final @Nullable String authorization;
+    private final boolean readOnly;
+    private final long maxObjectSize;
+    private final Semaphore transfers;
+
+    public HttpRemoteCache(URI uri, boolean readOnly, long maxObjectSize, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Remote cache parallelism must be positive");
+        }
+        var path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        if (!path.endsWith("/")) {
+            path = path + "/";
+        }
+        try {
+            this.base = new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), path, null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Invalid remote cache URI " + uri, e);
+        }
+        this.authorization = uri.getUserInfo() == null ? null : "Basic " + Base64.getEncoder().encodeToString(uri.getUserInfo().getBytes(StandardCharsets.UTF_8));
+        this.readOnly = readOnly;
+        this.maxObjectSize = maxObjectSize;
+        this.transfers = new Semaphore(parallelism);
+        this.client = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+    }
+
+    @Override
+    public byte @Nullable [] loadState(String key) throws IOException {
+        var response = send(request("states/" + key, STATE_TIMEOUT).GET().build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        checkStatus(response);
+        return response.body();
+    }
+
+    @Override
+    public void storeState(String key, byte[] state) throws IOException {
+        var request = request("states/" + key, STATE_TIMEOUT)
+            .header("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofByteArray(state))
+            .build();
+        checkStatus(send(request, HttpResponse.BodyHandlers.discarding()));
+    }
+
+    @Override
+    public boolean loadObject(String name, Path target) throws IOException {
+        var response = send(request("objects/" + name, OBJECT_TIMEOUT).GET().build(), info -> {
+            var length = info.headers().firstValueAsLong("Content-Length").orElse(-1);
+            if (info.statusCode() / 100 == 2 && length <= maxObjectSize) {
+                return HttpResponse.BodySubscribers.ofFile(target);
+            }
+            return HttpResponse.BodySubscribers.replacing(null);
+        });
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        checkStatus(response);
+        if (response.body() == null) {
+            return false;
+        }
+        return Files.size(target) <= maxObjectSize;
+    }
+
+    @Override
+    public void storeObject(String name, Path source) throws IOException {
+        var head = send(request("objects/" + name, STATE_TIMEOUT).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        if (head.statusCode() / 100 == 2) {
+            return;
+        }
+        var request = request("objects/" + name, OBJECT_TIMEOUT)
+            .header("Content-Type", "application/octet-stream")
+            .PUT(HttpRequest.BodyPublishers.ofFile(source))
+            .build();
+        checkStatus(send(request, HttpResponse.BodyHandlers.discarding()));
+    }
+
+    @Override
+    public boolean readOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public long maxObjectSize() {
+        return maxObjectSize;
+    }
+
+    private HttpRequest.Builder request(String path, Duration timeout) {
+        var builder = HttpRequest.newBuilder(base.resolve(path)).timeout(timeout);
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder;
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            transfers.acquire();
+            try {
+                return client.send(request, handler);
+            } finally {
+                transfers.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during " + request.method() + " " + request.uri());
+        }
+    }
+
+    private static void checkStatus(HttpResponse<?> response) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("Remote cache responded to " + response.request().method() + " " + response.request().uri() + " with status " + response.statusCode());
+        }
+    }
+}
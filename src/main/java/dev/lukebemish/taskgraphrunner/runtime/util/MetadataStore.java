@@ -0,0 +1,603 @@
+package dev.lukebemish.taskgraphrunner.runtime.util;
+
+import com.google.gson.JsonObject;
+import org.jspecify.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Task state for a cache directory, kept in a single append-only log. Each record is length-prefixed and checksummed,
+ * so a record torn by a crash is detected and discarded the next time the log is appended to. The log is read into an
+ * in-memory index, which picks up records appended by other processes before every read.
+ */
+public final class MetadataStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataStore.class);
+
+    private static final String LOG_FILE = "metadata.log";
+    private static final String LOCK_FILE = "metadata.lock";
+    private static final int MAGIC = 0x54475253;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private static final byte PUT = 0;
+    private static final byte ACCESS = 1;
+    private static final byte REMOVE = 2;
+
+    // Cleanup works in days, so access times are only recorded to the hour and cache hits don't each grow the log
+    private static final long ACCESS_RESOLUTION = TimeUnit.HOURS.toMillis(1);
+    private static final int COMPACTION_THRESHOLD = 4096;
+
+    // Encoded states are used to name files, so must not be able to reach outside of the objects directory
+    private static final Pattern OBJECT_HASH = Pattern.compile("^[0-9a-f]{64}$");
+    private static final Pattern OBJECT_TYPE = Pattern.compile("^[A-Za-z0-9_.-]+$");
+    private static final int ENCODED_DIGEST_SIZE = 32;
+
+    private static final Pattern LEGACY_STATE = Pattern.compile("^([0-9a-f]{32})\\.json$");
+    private static final Pattern LEGACY_MARKER = Pattern.compile("^([0-9a-f]{32})\\.(.+)\\.(\\d+)\\.(.+)\\.txt$");
+
+    private static final Map<Path, MetadataStore> STORES = new ConcurrentHashMap<>();
+    private static final Map<Path, MetadataStore> READ_ONLY_STORES = new ConcurrentHashMap<>();
+
+    private final Path logFile;
+    private final Path lockFile;
+    private final boolean readOnly;
+    private final Map<String, TaskState> index = new HashMap<>();
+
+    private @Nullable FileChannel channel;
+    private @Nullable Object fileKey;
+    private long generation;
+    private long position;
+    private int records;
+
+    /**
+     * @param size the size of the object in bytes, or {@code -1} if it was not recorded
+     */
+    public record OutputState(String type, String objectHash, String contentHash, long size) {}
+
+    /**
+     * @param executionTime how long the task took to run, in milliseconds, as an estimate of what regenerating its
+     *                      outputs would cost; {@code 0} if it was not recorded
+     */
+    public record TaskState(int outputId, long lastExecuted, long lastAccessed, long executionTime, byte[] inputsDigest, Map<String, OutputState> outputs) {
+        public TaskState {
+            outputs = Map.copyOf(outputs);
+        }
+
+        public TaskState withLastAccessed(long lastAccessed) {
+            return new TaskState(outputId, lastExecuted, lastAccessed, executionTime, inputsDigest, outputs);
+        }
+    }
+
+    /**
+     * Opens the store for the given cache directory, importing per-task state and marker files left by older versions
+     * the first time. Stores are shared within a process.
+     */
+    public static MetadataStore open(Path cacheDirectory) throws IOException {
+        return open(STORES, cacheDirectory, false);
+    }
+
+    /**
+     * Opens the store for a cache directory that this process may not write to, such as a cache shared between
+     * machines. Nothing is created or imported, the store is read without taking its lock, and a missing log is
+     * treated as an empty store.
+     */
+    public static MetadataStore openReadOnly(Path cacheDirectory) throws IOException {
+        return open(READ_ONLY_STORES, cacheDirectory, true);
+    }
+
+    private static MetadataStore open(Map<Path, MetadataStore> stores, Path cacheDirectory, boolean readOnly) throws IOException {
+        try {
+            return stores.computeIfAbsent(cacheDirectory.toAbsolutePath().normalize(), directory -> {
+                try {
+                    return new MetadataStore(directory, readOnly);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private MetadataStore(Path cacheDirectory, boolean readOnly) throws IOException {
+        this.logFile = cacheDirectory.resolve(LOG_FILE);
+        this.lockFile = cacheDirectory.resolve(LOCK_FILE);
+        this.readOnly = readOnly;
+        if (!readOnly) {
+            Files.createDirectories(cacheDirectory);
+        }
+        if (!readOnly && !Files.exists(logFile)) {
+            try (var ignored = lock()) {
+                if (!Files.exists(logFile)) {
+                    var resultsDirectory = cacheDirectory.resolve("results");
+                    var imported = new LinkedHashMap<String, TaskState>();
+                    var importedFiles = new ArrayList<Path>();
+                    if (Files.isDirectory(resultsDirectory)) {
+                        importLegacy(resultsDirectory, cacheDirectory.resolve("objects"), imported, importedFiles);
+                    }
+                    writeLog(imported);
+                    for (var file : importedFiles) {
+                        Files.deleteIfExists(file);
+                    }
+                    if (!imported.isEmpty()) {
+                        LOGGER.info("Imported state for {} cached tasks into {}", imported.size(), logFile);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            refresh();
+        }
+    }
+
+    public synchronized @Nullable TaskState taskState(String key) {
+        try {
+            refresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return index.get(key);
+    }
+
+    /**
+     * {@return a copy of every task state in the store}
+     */
+    public synchronized Map<String, TaskState> taskStates() {
+        try {
+            refresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new HashMap<>(index);
+    }
+
+    public synchronized void putTaskState(String key, TaskState state) {
+        append(record(PUT, key, out -> writeState(out, state)));
+    }
+
+    public synchronized void markAccessed(String key, long time) {
+        var existing = taskState(key);
+        if (existing == null || time - existing.lastAccessed() < ACCESS_RESOLUTION) {
+            return;
+        }
+        append(record(ACCESS, key, out -> out.writeLong(time)));
+    }
+
+    public synchronized void remove(String key) {
+        if (taskState(key) == null) {
+            return;
+        }
+        append(record(REMOVE, key, out -> {}));
+    }
+
+    /**
+     * Closes the log of every store opened by this process, such as at the end of a command run by a long-lived daemon.
+     * The stores remain usable, and read their logs afresh when next used.
+     */
+    public static void closeAll() {
+        for (var stores : List.of(STORES, READ_ONLY_STORES)) {
+            for (var store : stores.values()) {
+                try {
+                    store.closeLog();
+                } catch (IOException e) {
+                    LOGGER.warn("Could not close metadata store at {}", store.logFile, e);
+                }
+            }
+        }
+    }
+
+    private synchronized void closeLog() throws IOException {
+        if (channel != null) {
+            var open = channel;
+            channel = null;
+            open.close();
+        }
+    }
+
+    /**
+     * Rewrites the log to contain only the current state of each task.
+     */
+    public synchronized void compact() {
+        checkWritable();
+        try (var ignored = lock()) {
+            refresh();
+            writeLog(index);
+            refresh();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * {@return the state in the store's binary format, for exchanging states with other caches} The state is followed
+     * by a SHA-256 digest of everything before it, so that damaged states are rejected by {@link #decode(byte[])}.
+     */
+    public static byte[] encode(TaskState state) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeState(out, state);
+            out.flush();
+            out.write(sha256().digest(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a state written by {@link #encode(TaskState)}, checking its digest and that every output names a
+     * well-formed object.
+     */
+    public static TaskState decode(byte[] bytes) throws IOException {
+        if (bytes.length < ENCODED_DIGEST_SIZE) {
+            throw new IOException("Task state is truncated");
+        }
+        var length = bytes.length - ENCODED_DIGEST_SIZE;
+        var digest = sha256();
+        digest.update(bytes, 0, length);
+        if (!MessageDigest.isEqual(digest.digest(), Arrays.copyOfRange(bytes, length, bytes.length))) {
+            throw new IOException("Task state does not match its digest");
+        }
+        TaskState state;
+        try (var in = new DataInputStream(new ByteArrayInputStream(bytes, 0, length))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Task state is not in a supported format");
+            }
+            state = readState(in);
+            if (in.available() != 0) {
+                throw new IOException("Task state has unexpected trailing data");
+            }
+        }
+        for (var output : state.outputs().values()) {
+            if (!OBJECT_HASH.matcher(output.objectHash()).matches() || !OBJECT_TYPE.matcher(output.type()).matches() || output.size() < -1) {
+                throw new IOException("Task state refers to invalid object " + output.objectHash() + "." + output.type());
+            }
+        }
+        return state;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] record(byte kind, String key, RecordWriter writer) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(kind);
+            out.writeUTF(key);
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeState(DataOutputStream out, TaskState state) throws IOException {
+        out.writeInt(state.outputId());
+        out.writeLong(state.lastExecuted());
+        out.writeLong(state.lastAccessed());
+        out.writeLong(state.executionTime());
+        out.writeShort(state.inputsDigest().length);
+        out.write(state.inputsDigest());
+        out.writeShort(state.outputs().size());
+        for (var entry : state.outputs().entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().type());
+            out.writeUTF(entry.getValue().objectHash());
+            out.writeUTF(entry.getValue().contentHash());
+            out.writeLong(entry.getValue().size());
+        }
+    }
+
+    private static TaskState readState(DataInputStream in) throws IOException {
+        var outputId = in.readInt();
+        var lastExecuted = in.readLong();
+        var lastAccessed = in.readLong();
+        var executionTime = in.readLong();
+        var inputsDigest = new byte[in.readUnsignedShort()];
+        in.readFully(inputsDigest);
+        var outputCount = in.readUnsignedShort();
+        Map<String, OutputState> outputs = new HashMap<>();
+        for (int i = 0; i < outputCount; i++) {
+            var name = in.readUTF();
+            var type = in.readUTF();
+            var objectHash = in.readUTF();
+            var contentHash = in.readUTF();
+            outputs.put(name, new OutputState(type, objectHash, contentHash, in.readLong()));
+        }
+        return new TaskState(outputId, lastExecuted, lastAccessed, executionTime, inputsDigest, outputs);
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        try (var in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            var kind = in.readByte();
+            var key = in.readUTF();
+            switch (kind) {
+                case PUT -> index.put(key, readState(in));
+                case ACCESS -> {
+                    var time = in.readLong();
+                    index.computeIfPresent(key, (k, state) -> state.lastAccessed() >= time ? state : state.withLastAccessed(time));
+                }
+                case REMOVE -> index.remove(key);
+                default -> throw new IOException("Unknown record kind " + kind);
+            }
+        }
+        records++;
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("Metadata store at " + logFile + " is read-only");
+        }
+    }
+
+    private void append(byte[] payload) {
+        checkWritable();
+        try (var ignored = lock()) {
+            refresh();
+            var channel = Objects.requireNonNull(this.channel);
+            if (channel.size() > position) {
+                // Left behind by a process that crashed mid-write; nothing after the last valid record can be trusted
+                LOGGER.warn("Discarding {} trailing bytes of incomplete records in {}", channel.size() - position, logFile);
+                channel.truncate(position);
+            }
+            var crc = new CRC32();
+            crc.update(payload);
+            var buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            apply(payload);
+            if (records > COMPACTION_THRESHOLD && records > index.size() * 4) {
+                writeLog(index);
+                refresh();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void refresh() throws IOException {
+        if (readOnly && !Files.exists(logFile)) {
+            return;
+        }
+        var attributes = Files.readAttributes(logFile, BasicFileAttributes.class);
+        if (channel != null) {
+            var replaced = attributes.fileKey() != null ? !attributes.fileKey().equals(fileKey) : readGeneration() != generation;
+            if (replaced || attributes.size() < position) {
+                channel.close();
+                channel = null;
+            } else if (attributes.size() == position) {
+                return;
+            }
+        }
+        if (channel == null) {
+            channel = readOnly ? FileChannel.open(logFile, StandardOpenOption.READ) : FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileKey = attributes.fileKey();
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Metadata store at " + logFile + " is not in a supported format; delete it to start over");
+            }
+            generation = header.getLong();
+            index.clear();
+            records = 0;
+            position = HEADER_SIZE;
+        }
+        var size = channel.size();
+        if (size <= position) {
+            return;
+        }
+        var buffer = ByteBuffer.allocate(Math.toIntExact(size - position));
+        readFully(channel, buffer, position);
+        buffer.flip();
+        var crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            var length = buffer.getInt();
+            var checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+            var payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload);
+            position += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    private long readGeneration() throws IOException {
+        try (var fresh = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(fresh, header, 0);
+            return header.remaining() == 0 ? header.getLong(Integer.BYTES * 2) : -1;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Writes a fresh log containing the given states and moves it into place atomically. The new log is synced to disk
+     * before it replaces the old one, so a crash leaves one or the other intact. Must hold the store lock.
+     */
+    private void writeLog(Map<String, TaskState> states) throws IOException {
+        var temporary = logFile.resolveSibling(LOG_FILE + ".tmp");
+        try (var file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(new SecureRandom().nextLong());
+            var crc = new CRC32();
+            for (var entry : states.entrySet()) {
+                var payload = record(PUT, entry.getKey(), o -> writeState(o, entry.getValue()));
+                crc.reset();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            }
+            out.flush();
+            file.force(true);
+        }
+        Files.move(temporary, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(logFile.getParent());
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Makes the rename itself durable; directories cannot be opened this way on every platform, such as Windows
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Could not sync directory {}", directory, e);
+        }
+    }
+
+    private record StoreLock(FileChannel channel, FileLock lock) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            try {
+                lock.release();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private StoreLock lock() throws IOException {
+        var lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            return new StoreLock(lockChannel, lockChannel.lock());
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    private static void importLegacy(Path resultsDirectory, Path objectsDirectory, Map<String, TaskState> imported, List<Path> importedFiles) throws IOException {
+        try (var directories = Files.list(resultsDirectory)) {
+            for (var directory : directories.filter(Files::isDirectory).toList()) {
+                Map<String, Map<String, OutputState>> markers = new HashMap<>();
+                List<Path> states = new ArrayList<>();
+                List<Path> markerFiles = new ArrayList<>();
+                try (var files = Files.list(directory)) {
+                    for (var file : files.toList()) {
+                        var name = file.getFileName().toString();
+                        if (LEGACY_STATE.matcher(name).matches()) {
+                            states.add(file);
+                            continue;
+                        }
+                        var marker = LEGACY_MARKER.matcher(name);
+                        if (marker.matches()) {
+                            markerFiles.add(file);
+                            var contentsHash = marker.group(1);
+                            var outputKey = contentsHash + "." + marker.group(2) + "." + marker.group(3);
+                            var objectHash = Files.readString(file, StandardCharsets.UTF_8).trim();
+                            markers.computeIfAbsent(outputKey, k -> new HashMap<>())
+                                .put(marker.group(2), new OutputState(marker.group(4), objectHash, "", -1));
+                        }
+                    }
+                }
+                for (var statePath : states) {
+                    var name = statePath.getFileName().toString();
+                    var contentsHash = name.substring(0, name.length() - ".json".length());
+                    try {
+                        JsonObject state;
+                        try (var reader = Files.newBufferedReader(statePath, StandardCharsets.UTF_8)) {
+                            state = JsonUtils.GSON.fromJson(reader, JsonObject.class);
+                        }
+                        var outputId = state.get("outputId").getAsInt();
+                        var hashes = state.getAsJsonObject("hashes");
+                        var lastExecutedJson = state.get("lastExecuted");
+                        var inputsDigestJson = state.get("inputsDigest");
+                        Map<String, OutputState> outputs = new HashMap<>();
+                        boolean complete = true;
+                        for (var entry : hashes.entrySet()) {
+                            var marker = markers.getOrDefault(contentsHash + "." + entry.getKey() + "." + outputId, Map.of()).get(entry.getKey());
+                            var objectPath = marker == null ? null : objectsDirectory.resolve(marker.objectHash().substring(0, 2)).resolve(marker.objectHash() + "." + marker.type());
+                            if (objectPath == null || !Files.isRegularFile(objectPath)) {
+                                complete = false;
+                                break;
+                            }
+                            outputs.put(entry.getKey(), new OutputState(marker.type(), marker.objectHash(), entry.getValue().getAsString(), Files.size(objectPath)));
+                        }
+                        if (complete) {
+                            imported.put(directory.getFileName() + "/" + contentsHash, new TaskState(
+                                outputId,
+                                lastExecutedJson == null ? 0 : lastExecutedJson.getAsLong(),
+                                Files.readAttributes(statePath, BasicFileAttributes.class).lastAccessTime().toMillis(),
+                                0,
+                                inputsDigestJson == null ? new byte[0] : HexFormat.of().parseHex(inputsDigestJson.getAsString()),
+                                outputs
+                            ));
+                        }
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Could not import task state {}", statePath, e);
+                    }
+                    importedFiles.add(statePath);
+                }
+                importedFiles.addAll(markerFiles);
+            }
+        }
+    }
+}
@@ -139,6 +139,7 @@ public Function<Values, ValueInput> build(Builder<ValueInput> builder) {
     public static final class FileInput extends Argument {
         public Input input;
         public PathSensitivity pathSensitivity;
+        public @Nullable ContentNormalization normalization = null;
 
         public FileInput(@Nullable String pattern, Input input, PathSensitivity pathSensitivity) {
             super(pattern);
@@ -157,7 +158,12 @@ public Function<Values, FileInput> build(Builder<FileInput> builder) {
                 var pattern = builder.field("pattern", arg -> arg.pattern, String.class);
                 var input = builder.field("input", arg -> arg.input, Input.class);
                 var pathSensitivity = builder.field("pathSensitivity", arg -> arg.pathSensitivity, PathSensitivity.class);
-                return values -> new FileInput(values.get(pattern), values.get(input), values.get(pathSensitivity));
+                var normalization = builder.field("normalization", arg -> arg.normalization, ContentNormalization.class);
+                return values -> {
+                    var fileInput = new FileInput(values.get(pattern), values.get(input), values.get(pathSensitivity));
+                    fileInput.normalization = values.get(normalization);
+                    return fileInput;
+                };
             }
         }
     }
@@ -219,6 +225,7 @@ public Function<Values, LibrariesFile> build(Builder<LibrariesFile> builder) {
     @JsonAdapter(ArgumentAdapter.class)
     public static final class Classpath extends Argument {
         public final List<Input> input = new ArrayList<>();
+        public @Nullable ContentNormalization normalization = null;
 
         public Classpath(@Nullable String pattern, List<Input> input) {
             super(pattern);
@@ -235,7 +242,12 @@ private static final class Specialized extends FieldAdapter<Classpath> {
             public Function<Values, Classpath> build(Builder<Classpath> builder) {
                 var pattern = builder.field("pattern", arg -> arg.pattern, String.class);
                 var input = builder.field("input", arg -> arg.input, TypeToken.getParameterized(List.class, Input.class).getType());
-                return values -> new Classpath(values.get(pattern), values.get(input));
+                var normalization = builder.field("normalization", arg -> arg.normalization, ContentNormalization.class);
+                return values -> {
+                    var classpath = new Classpath(values.get(pattern), values.get(input));
+                    classpath.normalization = values.get(normalization);
+                    return classpath;
+                };
             }
         }
     }
@@ -244,6 +256,7 @@ public Function<Values, Classpath> build(Builder<Classpath> builder) {
     public static final class Zip extends Argument {
         public final List<Input> inputs = new ArrayList<>();
         public PathSensitivity pathSensitivity;
+        public @Nullable ContentNormalization normalization = null;
 
         public Zip(@Nullable String pattern, List<Input> inputs, PathSensitivity pathSensitivity) {
             super(pattern);
@@ -262,7 +275,12 @@ public Function<Values, Zip> build(Builder<Zip> builder) {
                 var pattern = builder.field("pattern", arg -> arg.pattern, String.class);
                 var inputs = builder.field("inputs", arg -> arg.inputs, TypeToken.getParameterized(List.class, Input.class).getType());
                 var pathSensitivity = builder.field("pathSensitivity", arg -> arg.pathSensitivity, PathSensitivity.class);
-                return values -> new Zip(values.get(pattern), values.get(inputs), values.get(pathSensitivity));
+                var normalization = builder.field("normalization", arg -> arg.normalization, ContentNormalization.class);
+                return values -> {
+                    var zip = new Zip(values.get(pattern), values.get(inputs), values.get(pathSensitivity));
+                    zip.normalization = values.get(normalization);
+                    return zip;
+                };
             }
         }
     }
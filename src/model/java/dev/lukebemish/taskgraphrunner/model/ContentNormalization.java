@@ -0,0 +1,35 @@
+package dev.lukebemish.taskgraphrunner.model;
+
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Locale;
+
+@JsonAdapter(ContentNormalization.Adapter.class)
+public enum ContentNormalization {
+    NONE,
+    /**
+     * Only the ABI of classes in the archive -- class signatures, non-private members, and annotations -- is hashed;
+     * resources and method bodies are ignored. Files that are not archives are hashed in full.
+     */
+    ABI,
+    /**
+     * The archive is hashed by its sorted entry names and the hashes of their uncompressed contents, ignoring entry
+     * order, timestamps, compression, and other zip metadata. Files that are not archives are hashed in full.
+     */
+    ARCHIVE;
+
+    static final class Adapter extends GsonAdapter<ContentNormalization> {
+        @Override
+        public void write(JsonWriter out, ContentNormalization value) throws IOException {
+            out.value(value.name().toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public ContentNormalization read(JsonReader in) throws IOException {
+            return ContentNormalization.valueOf(in.nextString().toUpperCase(Locale.ROOT));
+        }
+    }
+}
@@ -149,6 +149,7 @@ public static final class InterfaceInjection extends TaskModel {
         public Input input;
         public Input interfaceInjection;
         public final List<Input> classpath = new ArrayList<>();
+        public @Nullable ContentNormalization classpathNormalization = null;
 
         public InterfaceInjection(String name, Input input, Input interfaceInjection, List<Input> classpath) {
             super(name);
@@ -173,9 +174,11 @@ public Function<Values, InterfaceInjection> build(Builder<InterfaceInjection> bu
                 var input = builder.field("input", task -> task.input, Input.class);
                 var interfaceInjection = builder.field("interfaceInjection", task -> task.interfaceInjection, Input.class);
                 var classpath = builder.field("classpath", task -> task.classpath, TypeToken.getParameterized(List.class, Input.class).getType());
+                var classpathNormalization = builder.field("classpathNormalization", task -> task.classpathNormalization, ContentNormalization.class);
                 return values -> {
                     var task = new InterfaceInjection(values.get(name), values.get(input), values.get(interfaceInjection), values.get(classpath));
                     task.parallelism = values.get(parallelism);
+                    task.classpathNormalization = values.get(classpathNormalization);
                     return task;
                 };
             }
@@ -193,6 +196,7 @@ public static final class Jst extends TaskModel {
         public @Nullable MappingsSource parchmentData = null;
         public @Nullable Input binaryInput = null;
         public boolean classpathScopedJvm = false;
+        public @Nullable ContentNormalization classpathNormalization = null;
 
         public Jst(String name, List<Argument> args, Input input, List<Input> classpath, @Nullable List<Input> executionClasspath) {
             super(name);
@@ -234,6 +238,7 @@ public Function<Values, Jst> build(Builder<Jst> builder) {
                 var parchmentData = builder.field("parchmentData", task -> task.parchmentData, MappingsSource.class);
                 var classpathScopedJvm = builder.field("classpathScopedJvm", task -> task.classpathScopedJvm, Boolean.class);
                 var binaryInput = builder.field("binaryInput", task -> task.binaryInput, Input.class);
+                var classpathNormalization = builder.field("classpathNormalization", task -> task.classpathNormalization, ContentNormalization.class);
                 return values -> {
                     var jst = new Jst(values.get(name), values.get(args), values.get(input), values.get(classpath), values.get(jstClasspath));
                     jst.accessTransformers = values.get(accessTransformers);
@@ -242,6 +247,7 @@ public Function<Values, Jst> build(Builder<Jst> builder) {
                     jst.parallelism = values.get(parallelism);
                     jst.classpathScopedJvm = values.get(classpathScopedJvm) == Boolean.TRUE;
                     jst.binaryInput = values.get(binaryInput);
+                    jst.classpathNormalization = values.get(classpathNormalization);
                     return jst;
                 };
             }
@@ -254,6 +260,7 @@ public static final class Compile extends TaskModel {
         public Input sources;
         public final List<Input> sourcepath = new ArrayList<>();
         public final List<Input> classpath = new ArrayList<>();
+        public @Nullable ContentNormalization classpathNormalization = null;
 
         public Compile(String name, List<Argument> args, Input sources, List<Input> sourcepath, List<Input> classpath) {
             super(name);
@@ -282,9 +289,11 @@ public Function<Values, Compile> build(Builder<Compile> builder) {
                 var sources = builder.field("sources", task -> task.sources, Input.class);
                 var sourcepath = builder.field("sourcepath", task -> task.sourcepath, TypeToken.getParameterized(List.class, Input.class).getType());
                 var classpath = builder.field("classpath", task -> task.classpath, TypeToken.getParameterized(List.class, Input.class).getType());
+                var classpathNormalization = builder.field("classpathNormalization", task -> task.classpathNormalization, ContentNormalization.class);
                 return values -> {
                     var task = new Compile(values.get(name), values.get(arguments), values.get(sources), values.get(sourcepath), values.get(classpath));
                     task.parallelism = values.get(parallelism);
+                    task.classpathNormalization = values.get(classpathNormalization);
                     return task;
                 };
             }